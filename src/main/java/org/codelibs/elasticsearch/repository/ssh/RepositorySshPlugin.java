@@ -19,10 +19,19 @@
 
 package org.codelibs.elasticsearch.repository.ssh;
 
+import java.util.ArrayList;
+import java.util.Collection;
+
+import org.codelibs.elasticsearch.repository.ssh.rest.RestCollectSshGarbageAction;
+import org.codelibs.elasticsearch.repository.ssh.rest.RestCopySshSnapshotAction;
+import org.codelibs.elasticsearch.repository.ssh.rest.RestVerifySshBlobsAction;
+import org.codelibs.elasticsearch.repository.ssh.rest.RestVerifySshRepositoriesAction;
+import org.elasticsearch.common.component.LifecycleComponent;
 import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.index.snapshots.blobstore.BlobStoreIndexShardRepository;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.repositories.RepositoriesModule;
+import org.elasticsearch.rest.RestModule;
 
 public class RepositorySshPlugin extends Plugin {
 
@@ -42,4 +51,18 @@ public class RepositorySshPlugin extends Plugin {
             BlobStoreIndexShardRepository.class);
     }
 
+    public void onModule(RestModule restModule) {
+        restModule.addRestAction(RestVerifySshBlobsAction.class);
+        restModule.addRestAction(RestCopySshSnapshotAction.class);
+        restModule.addRestAction(RestCollectSshGarbageAction.class);
+        restModule.addRestAction(RestVerifySshRepositoriesAction.class);
+    }
+
+    @Override
+    public Collection<Class<? extends LifecycleComponent>> nodeServices() {
+        final Collection<Class<? extends LifecycleComponent>> services = new ArrayList<>();
+        services.add(SshVerificationService.class);
+        return services;
+    }
+
 }
@@ -0,0 +1,112 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.codelibs.elasticsearch.repository.ssh;
+
+import org.elasticsearch.common.ParseFieldMatcher;
+import org.elasticsearch.index.snapshots.blobstore.BlobStoreIndexShardSnapshot;
+import org.elasticsearch.index.snapshots.blobstore.BlobStoreIndexShardSnapshots;
+import org.elasticsearch.repositories.blobstore.ChecksumBlobStoreFormat;
+
+/**
+ * Blob names and formats written by BlobStoreRepository and
+ * BlobStoreIndexShardRepository.
+ */
+class ShardFormats {
+
+    static final String DATA_BLOB_PREFIX = "__";
+
+    static final String SHARD_INDEX_PREFIX = "index-";
+
+    static final String TEMP_PREFIX = "pending-";
+
+    private static final String SNAPSHOT_PREFIX = "snap-";
+
+    private static final String METADATA_PREFIX = "meta-";
+
+    private static final String SUFFIX = ".dat";
+
+    private final ChecksumBlobStoreFormat<BlobStoreIndexShardSnapshot> shardSnapshot;
+
+    private final ChecksumBlobStoreFormat<BlobStoreIndexShardSnapshots> shardSnapshots;
+
+    ShardFormats(final boolean compress) {
+        shardSnapshot = new ChecksumBlobStoreFormat<>("snapshot",
+            SNAPSHOT_PREFIX + "%s" + SUFFIX, BlobStoreIndexShardSnapshot.PROTO,
+            ParseFieldMatcher.STRICT, compress);
+        shardSnapshots = new ChecksumBlobStoreFormat<>("snapshots",
+            SHARD_INDEX_PREFIX + "%s", BlobStoreIndexShardSnapshots.PROTO,
+            ParseFieldMatcher.STRICT, compress);
+    }
+
+    ChecksumBlobStoreFormat<BlobStoreIndexShardSnapshot> shardSnapshot() {
+        return shardSnapshot;
+    }
+
+    ChecksumBlobStoreFormat<BlobStoreIndexShardSnapshots> shardSnapshots() {
+        return shardSnapshots;
+    }
+
+    static String dataBlobName(final long generation) {
+        return DATA_BLOB_PREFIX + Long.toString(generation, Character.MAX_RADIX);
+    }
+
+    static String snapshotBlobName(final String snapshot) {
+        return SNAPSHOT_PREFIX + snapshot + SUFFIX;
+    }
+
+    static String metadataBlobName(final String snapshot) {
+        return METADATA_PREFIX + snapshot + SUFFIX;
+    }
+
+    /**
+     * @return the snapshot name of a snap-*.dat or meta-*.dat blob, or null
+     */
+    static String snapshotName(final String blobName) {
+        if (!blobName.endsWith(SUFFIX)) {
+            return null;
+        }
+        if (blobName.startsWith(SNAPSHOT_PREFIX)) {
+            return blobName.substring(SNAPSHOT_PREFIX.length(),
+                blobName.length() - SUFFIX.length());
+        }
+        if (blobName.startsWith(METADATA_PREFIX)) {
+            return blobName.substring(METADATA_PREFIX.length(),
+                blobName.length() - SUFFIX.length());
+        }
+        return null;
+    }
+
+    /**
+     * Parse the generation of a __N or index-N blob.
+     * @return the generation, or -1 if the name has none
+     */
+    static long generation(final String blobName, final String prefix, final int radix) {
+        if (!blobName.startsWith(prefix)) {
+            return -1;
+        }
+        final String name = blobName.substring(prefix.length());
+        final int dot = name.indexOf('.');
+        try {
+            return Long.parseLong(dot < 0 ? name : name.substring(0, dot), radix);
+        } catch (final NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.codelibs.elasticsearch.repository.ssh;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codelibs.elasticsearch.repository.ssh.blobstore.JSchClient;
+import org.codelibs.elasticsearch.repository.ssh.blobstore.RemoteFile;
+import org.codelibs.elasticsearch.repository.ssh.blobstore.SshManifest;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.metadata.SnapshotId;
+import org.elasticsearch.common.blobstore.BlobContainer;
+import org.elasticsearch.common.blobstore.BlobPath;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.index.snapshots.blobstore.BlobStoreIndexShardSnapshot;
+import org.elasticsearch.index.snapshots.blobstore.BlobStoreIndexShardSnapshot.FileInfo;
+import org.elasticsearch.index.snapshots.blobstore.BlobStoreIndexShardSnapshots;
+import org.elasticsearch.index.snapshots.blobstore.SnapshotFiles;
+import org.elasticsearch.repositories.RepositoryException;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpException;
+
+/**
+ * Deletes blobs that no snapshot in the repository refers to, such as
+ * data files of failed snapshots and temporary files. Shard directories
+ * are checked in parallel, each against the sorted names referenced by
+ * its live snapshots, so only one shard's references are in memory per
+ * task. It does not run while a snapshot of the repository is running
+ * or being deleted, and blobs newer than the grace period are kept.
+ */
+public class SshGarbageCollector {
+
+    private static final ESLogger logger = Loggers.getLogger(SshGarbageCollector.class);
+
+    private static final int MAX_REPORTED = 1000;
+
+    private static final int BATCH_SIZE = 1000;
+
+    private final Settings settings;
+
+    private final ClusterService clusterService;
+
+    private final String repositoryName;
+
+    private final SshRepository repository;
+
+    private final ShardFormats formats;
+
+    private final boolean dryRun;
+
+    private final long gracePeriodMillis;
+
+    private final AtomicLong checkedBlobs = new AtomicLong();
+
+    private final AtomicLong orphanBlobs = new AtomicLong();
+
+    private final AtomicLong orphanBytes = new AtomicLong();
+
+    private final List<String> reported = Collections.synchronizedList(new ArrayList<String>());
+
+    private Set<String> liveSnapshots;
+
+    private long now;
+
+    public SshGarbageCollector(final Settings settings, final ClusterService clusterService,
+        final String repositoryName, final SshRepository repository, final boolean dryRun,
+        final TimeValue gracePeriod) {
+        this.settings = settings;
+        this.clusterService = clusterService;
+        this.repositoryName = repositoryName;
+        this.repository = repository;
+        this.formats = new ShardFormats(repository.isCompress());
+        this.dryRun = dryRun;
+        this.gracePeriodMillis = gracePeriod.millis();
+    }
+
+    /**
+     * @param parallelism number of directories checked at the same time
+     */
+    public void run(final int parallelism) throws IOException {
+        SshRepository.ensureNoSnapshotRunning(clusterService, repositoryName);
+        now = System.currentTimeMillis();
+        liveSnapshots = readSnapshots();
+
+        final ExecutorService executor = new ThreadPoolExecutor(parallelism, parallelism, 0L,
+            TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+            EsExecutors.daemonThreadFactory(settings, "ssh_gc"));
+        try {
+            collect(BlobPath.cleanPath(), null);
+
+            final BlobPath indicesPath = BlobPath.cleanPath().add("indices");
+            final List<Future<List<BlobPath>>> indexFutures = new ArrayList<>();
+            for (final String index : listDirectories(indicesPath)) {
+                final BlobPath indexPath = indicesPath.add(index);
+                indexFutures.add(executor.submit(new Callable<List<BlobPath>>() {
+                    @Override
+                    public List<BlobPath> call() throws Exception {
+                        collect(indexPath, null);
+                        final List<BlobPath> shardPaths = new ArrayList<>();
+                        for (final String shard : listDirectories(indexPath)) {
+                            shardPaths.add(indexPath.add(shard));
+                        }
+                        return shardPaths;
+                    }
+                }));
+            }
+
+            final List<Future<Void>> shardFutures = new ArrayList<>();
+            for (final Future<List<BlobPath>> indexFuture : indexFutures) {
+                for (final BlobPath shardPath : indexFuture.get()) {
+                    shardFutures.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            collect(shardPath, references(shardPath));
+                            return null;
+                        }
+                    }));
+                }
+            }
+            for (final Future<Void> shardFuture : shardFutures) {
+                shardFuture.get();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException(repositoryName, "Interrupted while collecting garbage.",
+                e);
+        } catch (final ExecutionException e) {
+            throw new RepositoryException(repositoryName, "Failed to collect garbage.",
+                e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    public long getCheckedBlobs() {
+        return checkedBlobs.get();
+    }
+
+    public long getOrphanBlobs() {
+        return orphanBlobs.get();
+    }
+
+    public long getOrphanBytes() {
+        return orphanBytes.get();
+    }
+
+    /**
+     * @return paths of the first orphan blobs found
+     */
+    public List<String> getReportedBlobs() {
+        synchronized (reported) {
+            return new ArrayList<>(reported);
+        }
+    }
+
+    /**
+     * Names of the blobs in a shard directory that live snapshots refer to.
+     * The shard index is used for the snapshots it lists, and the shard
+     * snapshot files are read for the others.
+     */
+    private String[] references(final BlobPath shardPath) throws IOException {
+        final BlobContainer container = repository.blobStore().blobContainer(shardPath);
+        final Set<String> names = container.listBlobs().keySet();
+        final Set<String> references = new HashSet<>();
+        final Set<String> covered = new HashSet<>();
+
+        long indexGeneration = -1;
+        for (final String name : names) {
+            indexGeneration = Math.max(indexGeneration,
+                ShardFormats.generation(name, ShardFormats.SHARD_INDEX_PREFIX, 10));
+        }
+        if (indexGeneration >= 0) {
+            try {
+                final BlobStoreIndexShardSnapshots shardSnapshots = formats.shardSnapshots()
+                    .read(container, Long.toString(indexGeneration));
+                for (final SnapshotFiles snapshotFiles : shardSnapshots.snapshots()) {
+                    if (liveSnapshots.contains(snapshotFiles.snapshot())) {
+                        addParts(references, snapshotFiles.indexFiles());
+                        covered.add(snapshotFiles.snapshot());
+                    }
+                }
+            } catch (final IOException e) {
+                logger.warn("Failed to read the shard index of {}, reading shard snapshots", e,
+                    shardPath.buildAsString("/"));
+            }
+        }
+
+        for (final String snapshot : liveSnapshots) {
+            final String snapshotBlob = ShardFormats.snapshotBlobName(snapshot);
+            if (!names.contains(snapshotBlob)) {
+                continue;
+            }
+            references.add(snapshotBlob);
+            if (!covered.contains(snapshot)) {
+                final BlobStoreIndexShardSnapshot shardSnapshot =
+                    formats.shardSnapshot().read(container, snapshot);
+                addParts(references, shardSnapshot.indexFiles());
+            }
+        }
+
+        final String[] sorted = references.toArray(new String[references.size()]);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private static void addParts(final Set<String> references, final List<FileInfo> files) {
+        for (final FileInfo fileInfo : files) {
+            for (int i = 0; i < fileInfo.numberOfParts(); i++) {
+                references.add(fileInfo.partName(i));
+            }
+        }
+    }
+
+    /**
+     * Find and delete orphan blobs in a directory.
+     * @param references sorted names of data blobs in use, or null if the
+     * directory has no data blobs
+     */
+    private void collect(final BlobPath path, final String[] references) throws IOException {
+        final JSchClient client = repository.blobStore().getClient();
+        final List<RemoteFile> files;
+        try {
+            files = client.listFiles(path, false);
+        } catch (final Exception e) {
+            throw new IOException("Failed to list " + path.buildAsString("/"), e);
+        }
+
+        final List<BlobPath> batch = new ArrayList<>();
+        for (final RemoteFile file : files) {
+            final String name = file.getName();
+            if (name.startsWith(".")) {
+                continue;
+            }
+            checkedBlobs.incrementAndGet();
+            if (!isOrphan(name, references, liveSnapshots)
+                || now - file.getMTime() * 1000L < gracePeriodMillis) {
+                continue;
+            }
+            orphanBlobs.incrementAndGet();
+            orphanBytes.addAndGet(file.getSize());
+            final BlobPath blobPath = path.add(name);
+            synchronized (reported) {
+                if (reported.size() < MAX_REPORTED) {
+                    reported.add(blobPath.buildAsString("/"));
+                }
+            }
+            if (!dryRun) {
+                batch.add(blobPath);
+                if (batch.size() >= BATCH_SIZE) {
+                    delete(path, batch);
+                    batch.clear();
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            delete(path, batch);
+        }
+    }
+
+    /**
+     * @param name blob name
+     * @param references sorted names of data blobs in use, or null if the
+     * directory has no data blobs
+     * @param liveSnapshots names of the snapshots in the repository
+     * @return true if no live snapshot needs the blob
+     */
+    static boolean isOrphan(final String name, final String[] references,
+        final Set<String> liveSnapshots) {
+        if (name.startsWith(ShardFormats.TEMP_PREFIX)) {
+            return true;
+        }
+        final String snapshot = ShardFormats.snapshotName(name);
+        if (snapshot != null) {
+            return !liveSnapshots.contains(snapshot);
+        }
+        if (references != null && name.startsWith(ShardFormats.DATA_BLOB_PREFIX)) {
+            return Arrays.binarySearch(references, name) < 0;
+        }
+        return false;
+    }
+
+    private void delete(final BlobPath path, final List<BlobPath> blobPaths) throws IOException {
+        // a snapshot started since the listing may refer to these blobs
+        SshRepository.ensureNoSnapshotRunning(clusterService, repositoryName);
+        if (!liveSnapshots.equals(readSnapshots())) {
+            throw new RepositoryException(repositoryName,
+                "Snapshots changed while collecting garbage.");
+        }
+        try {
+            repository.blobStore().getClient().deleteAll(blobPaths);
+        } catch (final Exception e) {
+            throw new IOException("Failed to delete blobs in " + path.buildAsString("/"), e);
+        }
+        final SshManifest manifest = repository.blobStore().getManifest();
+        if (manifest != null) {
+            for (final BlobPath blobPath : blobPaths) {
+                final String[] elements = blobPath.toArray();
+                manifest.removed(path, elements[elements.length - 1]);
+            }
+        }
+    }
+
+    private Set<String> readSnapshots() {
+        final Set<String> names = new HashSet<>();
+        for (final SnapshotId snapshotId : repository.snapshots()) {
+            names.add(snapshotId.getSnapshot());
+        }
+        return names;
+    }
+
+    private List<String> listDirectories(final BlobPath path) throws IOException {
+        try {
+            return repository.blobStore().getClient().listDirectories(path);
+        } catch (final SftpException e) {
+            if (e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+                return Collections.emptyList();
+            }
+            throw new IOException("Failed to list " + path.buildAsString("/"), e);
+        } catch (final Exception e) {
+            throw new IOException("Failed to list " + path.buildAsString("/"), e);
+        }
+    }
+}
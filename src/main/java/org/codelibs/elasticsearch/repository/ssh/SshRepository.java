@@ -20,21 +20,52 @@
 package org.codelibs.elasticsearch.repository.ssh;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
 
+import org.codelibs.elasticsearch.repository.ssh.blobstore.JSchAsyncClient;
 import org.codelibs.elasticsearch.repository.ssh.blobstore.JSchClient;
+import org.codelibs.elasticsearch.repository.ssh.blobstore.SshBlobCache;
 import org.codelibs.elasticsearch.repository.ssh.blobstore.SshBlobStore;
+import org.codelibs.elasticsearch.repository.ssh.blobstore.SshBulkWriter;
+import org.codelibs.elasticsearch.repository.ssh.blobstore.SshManifest;
+import org.codelibs.elasticsearch.repository.ssh.blobstore.SshPrefetcher;
+import org.codelibs.elasticsearch.repository.ssh.blobstore.SshSpool;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.SnapshotsInProgress;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.cluster.metadata.SnapshotId;
 import org.elasticsearch.common.blobstore.BlobPath;
-import org.elasticsearch.common.blobstore.BlobStore;
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.unit.ByteSizeUnit;
 import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.env.Environment;
 import org.elasticsearch.index.snapshots.IndexShardRepository;
+import org.elasticsearch.repositories.RepositoriesService;
+import org.elasticsearch.repositories.Repository;
 import org.elasticsearch.repositories.RepositoryException;
 import org.elasticsearch.repositories.RepositoryName;
 import org.elasticsearch.repositories.RepositorySettings;
 import org.elasticsearch.repositories.blobstore.BlobStoreRepository;
+import org.elasticsearch.snapshots.Snapshot;
+import org.elasticsearch.snapshots.SnapshotShardFailure;
 import org.elasticsearch.threadpool.ThreadPool;
 
+import com.jcraft.jsch.ChannelSftp;
 import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
 
 public class SshRepository extends BlobStoreRepository {
 
@@ -48,16 +79,83 @@ public class SshRepository extends BlobStoreRepository {
 
     private boolean compress;
 
+    private long spoolFinalizeTimeout;
+
     @Inject
     public SshRepository(final RepositoryName name,
         final RepositorySettings repositorySettings,
         final IndexShardRepository indexShardRepository,
-        final ThreadPool threadPool) throws IOException {
+        final ThreadPool threadPool, final Environment environment) throws IOException {
         super(name.getName(), repositorySettings, indexShardRepository);
 
+        SshBlobCache blobCache = null;
+        final ByteSizeValue cacheSize = repositorySettings.settings().getAsBytesSize(
+            "metadata_cache_size", settings.getAsBytesSize("metadata_cache_size", null));
+        if (cacheSize != null && cacheSize.bytes() > 0) {
+            final String cachePath = repositorySettings.settings().get("metadata_cache_path",
+                settings.get("metadata_cache_path"));
+            final Path cacheDir = cachePath != null ? environment.tmpFile().resolve(cachePath)
+                : environment.tmpFile().resolve(TYPE).resolve(name.name());
+            blobCache = new SshBlobCache(cacheDir, cacheSize.bytes());
+        }
+
         try {
-            blobStore = new SshBlobStore(settings, new JSchClient(
-                settings, repositorySettings, threadPool));
+            final JSchClient client = new JSchClient(settings, repositorySettings, threadPool);
+            final boolean verifyChecksum = repositorySettings.settings().getAsBoolean(
+                "verify_checksum", settings.getAsBoolean("verify_checksum", false));
+            SshBulkWriter bulkWriter = null;
+            if (repositorySettings.settings().getAsBoolean("bulk_transfer",
+                settings.getAsBoolean("bulk_transfer", false))) {
+                final ByteSizeValue threshold = repositorySettings.settings().getAsBytesSize(
+                    "bulk_transfer_threshold", settings.getAsBytesSize("bulk_transfer_threshold",
+                        new ByteSizeValue(100, ByteSizeUnit.KB)));
+                final int maxFiles = repositorySettings.settings().getAsInt(
+                    "bulk_transfer_max_files", settings.getAsInt("bulk_transfer_max_files", 100));
+                final TimeValue linger = repositorySettings.settings().getAsTime(
+                    "bulk_transfer_linger", settings.getAsTime("bulk_transfer_linger",
+                        TimeValue.timeValueMillis(20)));
+                bulkWriter = new SshBulkWriter(client, threshold.bytes(), maxFiles,
+                    linger.getMillis(), verifyChecksum);
+            }
+            SshSpool spool = null;
+            if (repositorySettings.settings().getAsBoolean("spool",
+                settings.getAsBoolean("spool", false))) {
+                final String spoolPath = repositorySettings.settings().get("spool_path",
+                    settings.get("spool_path"));
+                final Path dataDir = environment.dataFiles()[0];
+                final Path spoolDir = spoolPath != null ? dataDir.resolve(spoolPath)
+                    : dataDir.resolve("repository-" + TYPE + "-spool").resolve(name.name());
+                final ByteSizeValue spoolSize = repositorySettings.settings().getAsBytesSize(
+                    "spool_size", settings.getAsBytesSize("spool_size",
+                        new ByteSizeValue(1, ByteSizeUnit.GB)));
+                final int spoolConcurrency = repositorySettings.settings().getAsInt(
+                    "spool_concurrency", settings.getAsInt("spool_concurrency", 2));
+                final TimeValue spoolTimeout = repositorySettings.settings().getAsTime(
+                    "spool_timeout", settings.getAsTime("spool_timeout",
+                        TimeValue.timeValueMinutes(10)));
+                spool = new SshSpool(settings, spoolDir, spoolSize.bytes(), spoolConcurrency,
+                    spoolTimeout);
+                spoolFinalizeTimeout = repositorySettings.settings().getAsTime(
+                    "spool_finalize_timeout", settings.getAsTime("spool_finalize_timeout",
+                        TimeValue.timeValueHours(1))).millis();
+            }
+            SshPrefetcher prefetcher = null;
+            final int prefetchCount = repositorySettings.settings().getAsInt("prefetch_count",
+                settings.getAsInt("prefetch_count", 0));
+            if (prefetchCount > 0) {
+                final ByteSizeValue prefetchSize = repositorySettings.settings().getAsBytesSize(
+                    "prefetch_size", settings.getAsBytesSize("prefetch_size",
+                        new ByteSizeValue(64, ByteSizeUnit.MB)));
+                final TimeValue prefetchExpire = repositorySettings.settings().getAsTime(
+                    "prefetch_expire", settings.getAsTime("prefetch_expire",
+                        TimeValue.timeValueMinutes(1)));
+                prefetcher = new SshPrefetcher(settings, client, threadPool, prefetchCount,
+                    prefetchSize.bytes(), prefetchExpire);
+            }
+            final SshManifest manifest = repositorySettings.settings().getAsBoolean("manifest",
+                settings.getAsBoolean("manifest", false)) ? new SshManifest(client) : null;
+            blobStore = new SshBlobStore(settings, name.name(), client, blobCache, bulkWriter,
+                verifyChecksum, spool, prefetcher, manifest);
         } catch (final JSchException e) {
             throw new RepositoryException(name.name(),
                 "Failed to initialize SSH configuration.", e);
@@ -74,7 +172,7 @@ public class SshRepository extends BlobStoreRepository {
      * {@inheritDoc}
      */
     @Override
-    protected BlobStore blobStore() {
+    public SshBlobStore blobStore() {
         return blobStore;
     }
 
@@ -98,4 +196,146 @@ public class SshRepository extends BlobStoreRepository {
     protected BlobPath basePath() {
         return basePath;
     }
+
+    /**
+     * With a spool, shard files written on data nodes may still be waiting
+     * for upload when the master finalizes the snapshot. The snapshot is
+     * listed only after the snapshot file of every shard, which a spool
+     * uploads after the data files of the shard, is on the server.
+     */
+    @Override
+    public Snapshot finalizeSnapshot(final SnapshotId snapshotId, final List<String> indices,
+        final long startTime, final String failure, final int totalShards,
+        final List<SnapshotShardFailure> shardFailures) {
+        if (blobStore.getSpool() != null && failure == null) {
+            try {
+                awaitShardSnapshots(snapshotId, indices, startTime, shardFailures);
+            } catch (final IOException e) {
+                throw new RepositoryException(snapshotId.getRepository(),
+                    "Shard files of [" + snapshotId.getSnapshot() + "] are not uploaded.", e);
+            }
+        }
+        return super.finalizeSnapshot(snapshotId, indices, startTime, failure, totalShards,
+            shardFailures);
+    }
+
+    private void awaitShardSnapshots(final SnapshotId snapshotId, final List<String> indices,
+        final long startTime, final List<SnapshotShardFailure> shardFailures)
+        throws IOException {
+        final Set<String> failedShards = new HashSet<>();
+        for (final SnapshotShardFailure shardFailure : shardFailures) {
+            failedShards.add(shardFailure.index() + "/" + shardFailure.shardId());
+        }
+        final MetaData metaData = readSnapshotMetaData(snapshotId,
+            new Snapshot(snapshotId.getSnapshot(), indices, startTime), indices);
+        List<BlobPath> missing = new ArrayList<>();
+        for (final String index : indices) {
+            final IndexMetaData indexMetaData = metaData.index(index);
+            if (indexMetaData == null) {
+                continue;
+            }
+            for (int shard = 0; shard < indexMetaData.getNumberOfShards(); shard++) {
+                if (!failedShards.contains(index + "/" + shard)) {
+                    missing.add(BlobPath.cleanPath().add("indices").add(index)
+                        .add(Integer.toString(shard))
+                        .add(ShardFormats.snapshotBlobName(snapshotId.getSnapshot())));
+                }
+            }
+        }
+
+        final JSchAsyncClient client = blobStore.getClient().getAsyncClient();
+        final long deadline = System.currentTimeMillis() + spoolFinalizeTimeout;
+        long delay = 100L;
+        try {
+            while (true) {
+                final Map<BlobPath, PlainActionFuture<SftpATTRS>> stats = new LinkedHashMap<>();
+                for (final BlobPath path : missing) {
+                    final PlainActionFuture<SftpATTRS> future = PlainActionFuture.newFuture();
+                    client.stat(path, future);
+                    stats.put(path, future);
+                }
+                missing = new ArrayList<>();
+                for (final Map.Entry<BlobPath, PlainActionFuture<SftpATTRS>> entry : stats
+                    .entrySet()) {
+                    try {
+                        entry.getValue().get();
+                    } catch (final ExecutionException e) {
+                        if (!(e.getCause() instanceof SftpException)
+                            || ((SftpException) e.getCause()).id != ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+                            throw new IOException("Failed to stat "
+                                + entry.getKey().buildAsString("/"), e.getCause());
+                        }
+                        missing.add(entry.getKey());
+                    }
+                }
+                if (missing.isEmpty()) {
+                    return;
+                }
+                if (System.currentTimeMillis() + delay > deadline) {
+                    throw new IOException("Timed out waiting for " + missing.size()
+                        + " spooled shards, such as " + missing.get(0).buildAsString("/"));
+                }
+                Thread.sleep(delay);
+                delay = Math.min(delay * 2, 5000L);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for spooled shards.");
+        }
+    }
+
+    /**
+     * Add a snapshot whose blobs are already in place to the snapshot list.
+     * @param snapshotId
+     */
+    void addSnapshot(final SnapshotId snapshotId) throws IOException {
+        final List<SnapshotId> snapshotIds = new ArrayList<>(snapshots());
+        snapshotIds.add(snapshotId);
+        writeSnapshotList(snapshotIds);
+    }
+
+    /**
+     * Fail if a snapshot of the repository is running or being deleted.
+     * Operations that change the repository outside the snapshot service
+     * call this before they write or delete blobs.
+     * @param clusterService
+     * @param name
+     */
+    public static void ensureNoSnapshotRunning(final ClusterService clusterService,
+        final String name) {
+        ensureNoSnapshotRunning(clusterService.state(), name);
+    }
+
+    /**
+     * @param state
+     * @param name
+     * @see #ensureNoSnapshotRunning(ClusterService, String)
+     */
+    public static void ensureNoSnapshotRunning(final ClusterState state, final String name) {
+        final SnapshotsInProgress snapshots = state.custom(SnapshotsInProgress.TYPE);
+        if (snapshots == null) {
+            return;
+        }
+        for (final SnapshotsInProgress.Entry entry : snapshots.entries()) {
+            if (name.equals(entry.snapshotId().getRepository())) {
+                throw new RepositoryException(name, "Snapshot ["
+                    + entry.snapshotId().getSnapshot() + "] is running or being deleted.");
+            }
+        }
+    }
+
+    /**
+     * Look up a registered SSH repository.
+     * @param repositoriesService
+     * @param name
+     * @return
+     */
+    public static SshRepository get(final RepositoriesService repositoriesService,
+        final String name) {
+        final Repository repository = repositoriesService.repository(name);
+        if (!(repository instanceof SshRepository)) {
+            throw new RepositoryException(name, "Not an " + TYPE + " repository.");
+        }
+        return (SshRepository) repository;
+    }
 }
@@ -0,0 +1,185 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.codelibs.elasticsearch.repository.ssh;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.cluster.repositories.get.GetRepositoriesRequest;
+import org.elasticsearch.action.admin.cluster.repositories.get.GetRepositoriesResponse;
+import org.elasticsearch.action.admin.cluster.repositories.verify.VerifyRepositoryRequest;
+import org.elasticsearch.action.admin.cluster.repositories.verify.VerifyRepositoryResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.RepositoryMetaData;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+
+/**
+ * Verifies all registered SSH repositories. Each verification runs on
+ * all nodes through the verify repository API, and up to a given number
+ * of repositories are verified at the same time. No thread waits for a
+ * verification: the next one is started by the response of the previous
+ * one, and the results are passed to a listener when all are done.
+ */
+public class SshRepositoryVerifier {
+
+    private final Client client;
+
+    private final int parallelism;
+
+    public SshRepositoryVerifier(final Client client, final int parallelism) {
+        this.client = client;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * @param listener receives one result per repository, in registration order
+     */
+    public void verify(final ActionListener<List<Result>> listener) {
+        client.admin().cluster().getRepositories(new GetRepositoriesRequest(),
+            new ActionListener<GetRepositoriesResponse>() {
+                @Override
+                public void onResponse(final GetRepositoriesResponse response) {
+                    final List<String> names = new ArrayList<>();
+                    for (final RepositoryMetaData metaData : response.repositories()) {
+                        if (SshRepository.TYPE.equals(metaData.type())) {
+                            names.add(metaData.name());
+                        }
+                    }
+                    verify(names, listener);
+                }
+
+                @Override
+                public void onFailure(final Throwable e) {
+                    listener.onFailure(e);
+                }
+            });
+    }
+
+    /**
+     * @param names repositories to verify
+     * @param listener receives one result per repository, in the given order
+     */
+    public void verify(final List<String> names, final ActionListener<List<Result>> listener) {
+        if (names.isEmpty()) {
+            listener.onResponse(Collections.<Result> emptyList());
+            return;
+        }
+        final Verification verification = new Verification(names, listener);
+        for (int i = 0; i < Math.min(parallelism, names.size()); i++) {
+            verification.next();
+        }
+    }
+
+    public static class Result {
+        private final String repository;
+
+        private final List<String> nodes;
+
+        private final Throwable failure;
+
+        Result(final String repository, final List<String> nodes, final Throwable failure) {
+            this.repository = repository;
+            this.nodes = nodes;
+            this.failure = failure;
+        }
+
+        public String getRepository() {
+            return repository;
+        }
+
+        /**
+         * @return names of the nodes that verified the repository
+         */
+        public List<String> getNodes() {
+            return nodes;
+        }
+
+        /**
+         * @return the cause, or null if the repository was verified
+         */
+        public Throwable getFailure() {
+            return failure;
+        }
+    }
+
+    private class Verification {
+        private final List<String> names;
+
+        private final ActionListener<List<Result>> listener;
+
+        private final AtomicReferenceArray<Result> results;
+
+        private final AtomicInteger started = new AtomicInteger();
+
+        private final AtomicInteger completed = new AtomicInteger();
+
+        Verification(final List<String> names, final ActionListener<List<Result>> listener) {
+            this.names = names;
+            this.listener = listener;
+            this.results = new AtomicReferenceArray<>(names.size());
+        }
+
+        void next() {
+            final int index = started.getAndIncrement();
+            if (index >= names.size()) {
+                return;
+            }
+            final String name = names.get(index);
+            try {
+                client.admin().cluster().verifyRepository(new VerifyRepositoryRequest(name),
+                    new ActionListener<VerifyRepositoryResponse>() {
+                        @Override
+                        public void onResponse(final VerifyRepositoryResponse response) {
+                            final List<String> nodes = new ArrayList<>();
+                            for (final DiscoveryNode node : response.getNodes()) {
+                                nodes.add(node.getName());
+                            }
+                            done(index, new Result(name, nodes, null));
+                        }
+
+                        @Override
+                        public void onFailure(final Throwable e) {
+                            done(index, new Result(name, Collections.<String> emptyList(), e));
+                        }
+                    });
+            } catch (final Exception e) {
+                done(index, new Result(name, Collections.<String> emptyList(), e));
+            }
+        }
+
+        private void done(final int index, final Result result) {
+            results.set(index, result);
+            if (completed.incrementAndGet() == names.size()) {
+                final Result[] array = new Result[names.size()];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = results.get(i);
+                }
+                listener.onResponse(Arrays.asList(array));
+            } else {
+                next();
+            }
+        }
+    }
+}
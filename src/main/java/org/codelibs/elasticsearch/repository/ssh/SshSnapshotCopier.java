@@ -0,0 +1,375 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.codelibs.elasticsearch.repository.ssh;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codelibs.elasticsearch.repository.ssh.blobstore.JSchClient;
+import org.codelibs.elasticsearch.repository.ssh.blobstore.SshBlobStore;
+import org.codelibs.elasticsearch.repository.ssh.blobstore.SshManifest;
+import org.codelibs.elasticsearch.repository.ssh.blobstore.SshSpool;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.ClusterStateUpdateTask;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.cluster.metadata.SnapshotId;
+import org.elasticsearch.common.blobstore.BlobContainer;
+import org.elasticsearch.common.blobstore.BlobPath;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.index.snapshots.blobstore.BlobStoreIndexShardSnapshot;
+import org.elasticsearch.index.snapshots.blobstore.BlobStoreIndexShardSnapshot.FileInfo;
+import org.elasticsearch.index.snapshots.blobstore.BlobStoreIndexShardSnapshots;
+import org.elasticsearch.index.snapshots.blobstore.SnapshotFiles;
+import org.elasticsearch.repositories.RepositoryException;
+import org.elasticsearch.snapshots.Snapshot;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+
+/**
+ * Copies a snapshot between two SSH repositories on the same server
+ * without reading its blobs into Elasticsearch. Data blobs are copied on
+ * the server, one shard per task. They are renamed to the next free
+ * names of the target shard, and files the target already has are
+ * reused. The target's shard snapshot, shard index and snapshot list are
+ * then written like a snapshot taken on the target. The copy runs on the
+ * elected master, and the snapshot list is updated in a cluster state
+ * update task, so it does not race with snapshots that start or finish.
+ */
+public class SshSnapshotCopier {
+
+    private final Settings settings;
+
+    private final ClusterService clusterService;
+
+    private final String sourceName;
+
+    private final SshRepository source;
+
+    private final String targetName;
+
+    private final SshRepository target;
+
+    private final ShardFormats sourceFormats;
+
+    private final ShardFormats targetFormats;
+
+    private final AtomicLong copiedFiles = new AtomicLong();
+
+    private final AtomicLong reusedFiles = new AtomicLong();
+
+    public SshSnapshotCopier(final Settings settings, final ClusterService clusterService,
+        final String sourceName, final SshRepository source, final String targetName,
+        final SshRepository target) {
+        this.settings = settings;
+        this.clusterService = clusterService;
+        this.sourceName = sourceName;
+        this.source = source;
+        this.targetName = targetName;
+        this.target = target;
+        this.sourceFormats = new ShardFormats(source.isCompress());
+        this.targetFormats = new ShardFormats(target.isCompress());
+    }
+
+    /**
+     * @param snapshotName
+     * @param parallelism number of shards copied at the same time
+     * @return the number of shards copied
+     */
+    public int copy(final String snapshotName, final int parallelism) throws IOException {
+        final JSchClient sourceClient = source.blobStore().getClient();
+        if (!sourceClient.isSameServer(target.blobStore().getClient())) {
+            throw new RepositoryException(targetName,
+                "Not on the same SSH server as [" + sourceName + "].");
+        }
+        if (!clusterService.state().nodes().localNodeMaster()) {
+            throw new RepositoryException(targetName,
+                "Snapshots can only be copied on the elected master node.");
+        }
+        SshRepository.ensureNoSnapshotRunning(clusterService, targetName);
+        for (final SnapshotId snapshotId : target.snapshots()) {
+            if (snapshotId.getSnapshot().equals(snapshotName)) {
+                throw new RepositoryException(targetName,
+                    "Snapshot [" + snapshotName + "] already exists.");
+            }
+        }
+        final SshSpool spool = source.blobStore().getSpool();
+        if (spool != null) {
+            spool.drain();
+        }
+
+        final SnapshotId snapshotId = new SnapshotId(sourceName, snapshotName);
+        final Snapshot snapshot = source.readSnapshot(snapshotId);
+        // shard directories may be on different hosts, so they are not listed
+        final MetaData metaData =
+            source.readSnapshotMetaData(snapshotId, snapshot, snapshot.indices());
+        final Map<BlobPath, PlainActionFuture<SftpATTRS>> shardSnapshots = new LinkedHashMap<>();
+        for (final String index : snapshot.indices()) {
+            final BlobPath indexPath = BlobPath.cleanPath().add("indices").add(index);
+            final IndexMetaData indexMetaData = metaData.index(index);
+            if (indexMetaData == null) {
+                throw new IOException("No metadata of index [" + index + "] in ["
+                    + snapshotName + "].");
+            }
+            for (int shard = 0; shard < indexMetaData.getNumberOfShards(); shard++) {
+                final BlobPath shardPath = indexPath.add(Integer.toString(shard));
+                final PlainActionFuture<SftpATTRS> future = PlainActionFuture.newFuture();
+                sourceClient.getAsyncClient().stat(
+                    shardPath.add(ShardFormats.snapshotBlobName(snapshotName)), future);
+                shardSnapshots.put(shardPath, future);
+            }
+        }
+        final List<BlobPath> shardPaths = new ArrayList<>();
+        try {
+            for (final Map.Entry<BlobPath, PlainActionFuture<SftpATTRS>> entry : shardSnapshots
+                .entrySet()) {
+                try {
+                    entry.getValue().get();
+                    shardPaths.add(entry.getKey());
+                } catch (final ExecutionException e) {
+                    if (!(e.getCause() instanceof SftpException)
+                        || ((SftpException) e.getCause()).id != ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+                        throw new IOException("Failed to stat "
+                            + entry.getKey().buildAsString("/"), e.getCause());
+                    }
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException(targetName, "Interrupted while copying ["
+                + snapshotName + "].", e);
+        }
+
+        final ExecutorService executor = new ThreadPoolExecutor(parallelism, parallelism, 0L,
+            TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+            EsExecutors.daemonThreadFactory(settings, "ssh_copy"));
+        try {
+            final List<Future<Void>> futures = new ArrayList<>();
+            for (final BlobPath shardPath : shardPaths) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        copyShard(snapshotName, shardPath);
+                        return null;
+                    }
+                }));
+            }
+            for (final Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException(targetName, "Interrupted while copying ["
+                + snapshotName + "].", e);
+        } catch (final ExecutionException e) {
+            throw new RepositoryException(targetName, "Failed to copy [" + snapshotName + "].",
+                e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // metadata last, so the snapshot is listed only when it is complete
+        final Map<BlobPath, BlobPath> metadata = new LinkedHashMap<>();
+        for (final String index : snapshot.indices()) {
+            final BlobPath path = BlobPath.cleanPath().add("indices").add(index)
+                .add(ShardFormats.metadataBlobName(snapshotName));
+            metadata.put(path, path);
+        }
+        metadata.put(BlobPath.cleanPath().add(ShardFormats.metadataBlobName(snapshotName)),
+            BlobPath.cleanPath().add(ShardFormats.metadataBlobName(snapshotName)));
+        metadata.put(BlobPath.cleanPath().add(ShardFormats.snapshotBlobName(snapshotName)),
+            BlobPath.cleanPath().add(ShardFormats.snapshotBlobName(snapshotName)));
+        copyBlobs(metadata);
+        addSnapshot(snapshotName);
+        return shardPaths.size();
+    }
+
+    /**
+     * Snapshots are created, and removed from the cluster state after they
+     * are finalized, by cluster state update tasks on the master, so none
+     * can start or write the snapshot list while this task runs.
+     */
+    private void addSnapshot(final String snapshotName) {
+        final PlainActionFuture<Void> future = PlainActionFuture.newFuture();
+        clusterService.submitStateUpdateTask("ssh-copy-snapshot [" + targetName + ":"
+            + snapshotName + "]", new ClusterStateUpdateTask() {
+                @Override
+                public ClusterState execute(final ClusterState currentState) throws Exception {
+                    SshRepository.ensureNoSnapshotRunning(currentState, targetName);
+                    target.addSnapshot(new SnapshotId(targetName, snapshotName));
+                    return currentState;
+                }
+
+                @Override
+                public void onFailure(final String source, final Throwable t) {
+                    future.onFailure(t);
+                }
+
+                @Override
+                public void clusterStateProcessed(final String source,
+                    final ClusterState oldState, final ClusterState newState) {
+                    future.onResponse(null);
+                }
+            });
+        future.actionGet();
+    }
+
+    public long getCopiedFiles() {
+        return copiedFiles.get();
+    }
+
+    public long getReusedFiles() {
+        return reusedFiles.get();
+    }
+
+    private void copyShard(final String snapshotName, final BlobPath shardPath)
+        throws IOException {
+        final BlobContainer sourceContainer = source.blobStore().blobContainer(shardPath);
+        final BlobContainer targetContainer = target.blobStore().blobContainer(shardPath);
+        final BlobStoreIndexShardSnapshot shardSnapshot =
+            sourceFormats.shardSnapshot().read(sourceContainer, snapshotName);
+
+        final Map<String, ?> targetBlobs = targetContainer.listBlobs();
+        long generation = -1;
+        long indexGeneration = -1;
+        for (final String name : targetBlobs.keySet()) {
+            generation = Math.max(generation, ShardFormats.generation(name,
+                ShardFormats.DATA_BLOB_PREFIX, Character.MAX_RADIX));
+            indexGeneration = Math.max(indexGeneration, ShardFormats.generation(name,
+                ShardFormats.SHARD_INDEX_PREFIX, 10));
+        }
+        final List<SnapshotFiles> targetSnapshots = new ArrayList<>();
+        BlobStoreIndexShardSnapshots shardSnapshots = null;
+        if (indexGeneration >= 0) {
+            shardSnapshots = targetFormats.shardSnapshots().read(targetContainer,
+                Long.toString(indexGeneration));
+            targetSnapshots.addAll(shardSnapshots.snapshots());
+        }
+
+        final List<FileInfo> files = new ArrayList<>();
+        final Map<BlobPath, BlobPath> blobs = new LinkedHashMap<>();
+        for (final FileInfo fileInfo : shardSnapshot.indexFiles()) {
+            final FileInfo existing =
+                findExisting(shardSnapshots, fileInfo, targetBlobs.keySet());
+            if (existing != null) {
+                files.add(existing);
+                reusedFiles.incrementAndGet();
+                continue;
+            }
+            final FileInfo copied = new FileInfo(ShardFormats.dataBlobName(++generation),
+                fileInfo.metadata(), fileInfo.partSize());
+            for (int i = 0; i < fileInfo.numberOfParts(); i++) {
+                blobs.put(shardPath.add(fileInfo.partName(i)), shardPath.add(copied.partName(i)));
+            }
+            files.add(copied);
+            copiedFiles.incrementAndGet();
+        }
+        copyBlobs(blobs);
+
+        targetFormats.shardSnapshot().write(new BlobStoreIndexShardSnapshot(snapshotName,
+            shardSnapshot.indexVersion(), files, shardSnapshot.startTime(),
+            shardSnapshot.time(), shardSnapshot.numberOfFiles(), shardSnapshot.totalSize()),
+            targetContainer, snapshotName);
+        targetSnapshots.add(new SnapshotFiles(snapshotName, files));
+        targetFormats.shardSnapshots().writeAtomic(new BlobStoreIndexShardSnapshots(targetSnapshots),
+            targetContainer, Long.toString(indexGeneration + 1));
+    }
+
+    /**
+     * Find a file of the target shard with the same content. Blob names
+     * differ between repositories, so the store file metadata is compared,
+     * and the file is used only if all of its parts are in the target.
+     * @param shardSnapshots the target shard index, or null if there is none
+     * @param fileInfo a file of the source shard snapshot
+     * @param targetBlobs names of the blobs in the target shard directory
+     * @return the target file, or null if the file has to be copied
+     */
+    static FileInfo findExisting(final BlobStoreIndexShardSnapshots shardSnapshots,
+        final FileInfo fileInfo, final Set<String> targetBlobs) {
+        if (shardSnapshots == null) {
+            return null;
+        }
+        final List<FileInfo> candidates =
+            shardSnapshots.findPhysicalIndexFiles(fileInfo.physicalName());
+        if (candidates == null) {
+            return null;
+        }
+        for (final FileInfo candidate : candidates) {
+            if (candidate.isSame(fileInfo.metadata()) && hasParts(candidate, targetBlobs)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private static boolean hasParts(final FileInfo fileInfo, final Set<String> blobs) {
+        for (int i = 0; i < fileInfo.numberOfParts(); i++) {
+            if (!blobs.contains(fileInfo.partName(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void copyBlobs(final Map<BlobPath, BlobPath> blobs) throws IOException {
+        if (blobs.isEmpty()) {
+            return;
+        }
+        final SshBlobStore targetStore = target.blobStore();
+        try {
+            source.blobStore().getClient().copy(blobs, targetStore.getClient());
+        } catch (final Exception e) {
+            throw new IOException("Failed to copy blobs to [" + targetName + "].", e);
+        }
+        final SshManifest manifest = targetStore.getManifest();
+        if (manifest != null) {
+            for (final BlobPath path : blobs.values()) {
+                final String[] elements = path.toArray();
+                BlobPath containerPath = BlobPath.cleanPath();
+                for (int i = 0; i < elements.length - 1; i++) {
+                    containerPath = containerPath.add(elements[i]);
+                }
+                try {
+                    manifest.added(containerPath, elements[elements.length - 1],
+                        targetStore.getClient().stat(path).getSize());
+                } catch (final Exception e) {
+                    throw new IOException("Failed to stat " + path.buildAsString("/"), e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.codelibs.elasticsearch.repository.ssh;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.codelibs.elasticsearch.repository.ssh.SshRepositoryVerifier.Result;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterStateListener;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.gateway.GatewayService;
+
+/**
+ * Verifies all SSH repositories in the background once the elected
+ * master has recovered the cluster state, if
+ * "repositories.ssh.verify_on_startup" is enabled. Results are logged.
+ */
+public class SshVerificationService extends AbstractLifecycleComponent<SshVerificationService>
+    implements ClusterStateListener {
+
+    private final ClusterService clusterService;
+
+    private final Client client;
+
+    private final boolean enabled;
+
+    private final int parallelism;
+
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    @Inject
+    public SshVerificationService(final Settings settings, final ClusterService clusterService,
+        final Client client) {
+        super(settings);
+        this.clusterService = clusterService;
+        this.client = client;
+        this.enabled = settings.getAsBoolean("repositories.ssh.verify_on_startup", false);
+        this.parallelism = settings.getAsInt("repositories.ssh.verify_parallelism", 4);
+    }
+
+    @Override
+    protected void doStart() {
+        if (enabled) {
+            clusterService.add(this);
+        }
+    }
+
+    @Override
+    protected void doStop() {
+        clusterService.remove(this);
+    }
+
+    @Override
+    protected void doClose() {
+    }
+
+    @Override
+    public void clusterChanged(final ClusterChangedEvent event) {
+        if (!event.localNodeMaster()
+            || event.state().blocks().hasGlobalBlock(GatewayService.STATE_NOT_RECOVERED_BLOCK)
+            || !started.compareAndSet(false, true)) {
+            return;
+        }
+        clusterService.remove(this);
+
+        new SshRepositoryVerifier(client, parallelism).verify(
+            new ActionListener<List<Result>>() {
+                @Override
+                public void onResponse(final List<Result> results) {
+                    for (final Result result : results) {
+                        if (result.getFailure() == null) {
+                            logger.info("Verified repository [{}] on {}",
+                                result.getRepository(), result.getNodes());
+                        } else {
+                            logger.warn("Failed to verify repository [{}]",
+                                result.getFailure(), result.getRepository());
+                        }
+                    }
+                }
+
+                @Override
+                public void onFailure(final Throwable e) {
+                    logger.warn("Failed to verify repositories", e);
+                }
+            });
+    }
+}
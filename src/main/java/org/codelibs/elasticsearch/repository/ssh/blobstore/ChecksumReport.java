@@ -0,0 +1,53 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.codelibs.elasticsearch.repository.ssh.blobstore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Result of checking stored checksums on the SSH server.
+ */
+public class ChecksumReport {
+
+    private long checked;
+
+    private final List<String> failures = new ArrayList<>();
+
+    public long getChecked() {
+        return checked;
+    }
+
+    /**
+     * @return paths of blobs that are missing or do not match their checksum
+     */
+    public List<String> getFailures() {
+        return failures;
+    }
+
+    void addChecked(final long count) {
+        checked += count;
+    }
+
+    void addFailure(final String path) {
+        failures.add(path);
+    }
+
+}
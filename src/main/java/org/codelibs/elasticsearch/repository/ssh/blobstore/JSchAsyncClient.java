@@ -0,0 +1,388 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.codelibs.elasticsearch.repository.ssh.blobstore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Vector;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.codelibs.elasticsearch.repository.ssh.utils.SshConfig;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.common.blobstore.BlobPath;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.ChannelSftp.LsEntry;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+
+/**
+ * Asynchronous variant of {@link JSchClient}. Operations are queued to a
+ * few I/O threads and complete their listener on one of them, so callers
+ * can keep many operations outstanding without a thread for each;
+ * pass a PlainActionFuture to wait for one. An I/O thread keeps its SFTP
+ * channel open while operations are queued, instead of opening one per
+ * operation, and returns the session when it goes idle. Removals queued
+ * at the same time are sent as one batch.
+ * Listeners must not block, since they run on the I/O threads.
+ */
+public class JSchAsyncClient {
+
+    private static final ESLogger logger = Loggers.getLogger(JSchAsyncClient.class);
+
+    private final JSchClient client;
+
+    private final ThreadPoolExecutor executor;
+
+    private final ThreadLocal<HeldChannel> heldChannel = new ThreadLocal<>();
+
+    private final Object removalLock = new Object();
+
+    private Map<BlobPath, List<ActionListener<Void>>> removals = new LinkedHashMap<>();
+
+    private boolean removalScheduled;
+
+    JSchAsyncClient(final Settings settings, final JSchClient client, final int threads) {
+        this.client = client;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new IdleQueue(), EsExecutors.daemonThreadFactory(settings, "ssh_io"));
+    }
+
+    /**
+     * Read the whole blob into memory.
+     * @param blobPath
+     * @param listener
+     */
+    public void get(final BlobPath blobPath, final ActionListener<byte[]> listener) {
+        submit(blobPath, listener, new SftpCall<byte[]>() {
+            @Override
+            public byte[] call(final ChannelSftp channel, final String path) throws Exception {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                Streams.copy(channel.get(path), out);
+                return out.toByteArray();
+            }
+        });
+    }
+
+    /**
+     * Write the blob, creating its directory if it does not exist.
+     * @param blobPath
+     * @param bytes
+     * @param listener
+     */
+    public void put(final BlobPath blobPath, final byte[] bytes,
+        final ActionListener<Void> listener) {
+        submit(blobPath, listener, new SftpCall<Void>() {
+            @Override
+            public Void call(final ChannelSftp channel, final String path) throws Exception {
+                try {
+                    channel.put(new ByteArrayInputStream(bytes), path);
+                } catch (final SftpException e) {
+                    if (e.id != ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+                        throw e;
+                    }
+                    client.mkdirs(channel, JSchClient.parent(blobPath));
+                    channel.put(new ByteArrayInputStream(bytes), path);
+                }
+                return null;
+            }
+        });
+    }
+
+    public void ls(final BlobPath blobPath, final ActionListener<Vector<LsEntry>> listener) {
+        submit(blobPath, listener, new SftpCall<Vector<LsEntry>>() {
+            @Override
+            public Vector<LsEntry> call(final ChannelSftp channel, final String path)
+                throws Exception {
+                @SuppressWarnings("unchecked")
+                final Vector<LsEntry> entries = channel.ls(path);
+                return entries;
+            }
+        });
+    }
+
+    public void stat(final BlobPath blobPath, final ActionListener<SftpATTRS> listener) {
+        submit(blobPath, listener, new SftpCall<SftpATTRS>() {
+            @Override
+            public SftpATTRS call(final ChannelSftp channel, final String path)
+                throws Exception {
+                return channel.stat(path);
+            }
+        });
+    }
+
+    /**
+     * Remove the blob and its stored checksum. Removals waiting in the
+     * queue are sent together, as one command per host if shell exec is
+     * available. Without shell exec there are no stored checksums.
+     * A blob that does not exist is not an error.
+     * @param blobPath
+     * @param listener
+     */
+    public void rm(final BlobPath blobPath, final ActionListener<Void> listener) {
+        synchronized (removalLock) {
+            List<ActionListener<Void>> listeners = removals.get(blobPath);
+            if (listeners == null) {
+                listeners = new ArrayList<>();
+                removals.put(blobPath, listeners);
+            }
+            listeners.add(listener);
+            if (removalScheduled) {
+                return;
+            }
+            removalScheduled = true;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    removePending();
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            for (final List<ActionListener<Void>> listeners : takeRemovals().values()) {
+                for (final ActionListener<Void> l : listeners) {
+                    fail(l, e);
+                }
+            }
+        }
+    }
+
+    public void move(final BlobPath sourcePath, final BlobPath targetPath,
+        final ActionListener<Void> listener) {
+        submit(sourcePath, listener, new SftpCall<Void>() {
+            @Override
+            public Void call(final ChannelSftp channel, final String path) throws Exception {
+                channel.rename(path, client.remotePath(targetPath));
+                return null;
+            }
+        });
+    }
+
+    public void mkdirs(final BlobPath blobPath, final ActionListener<Void> listener) {
+        submit(blobPath, listener, new SftpCall<Void>() {
+            @Override
+            public Void call(final ChannelSftp channel, final String path) throws Exception {
+                client.mkdirs(channel, blobPath);
+                return null;
+            }
+        });
+    }
+
+    void close() {
+        executor.shutdownNow();
+    }
+
+    private <T> void submit(final BlobPath blobPath, final ActionListener<T> listener,
+        final SftpCall<T> call) {
+        execute(listener, new Runnable() {
+            @Override
+            public void run() {
+                final T result;
+                try {
+                    result = call(blobPath, call);
+                } catch (final Throwable t) {
+                    fail(listener, t);
+                    return;
+                }
+                respond(listener, result);
+            }
+        });
+    }
+
+    private void execute(final ActionListener<?> listener, final Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (final RejectedExecutionException e) {
+            fail(listener, e);
+        }
+    }
+
+    /**
+     * Run the call on the channel this thread holds for the host of the path.
+     */
+    private <T> T call(final BlobPath blobPath, final SftpCall<T> call) throws Exception {
+        final SshConfig host = client.host(blobPath);
+        HeldChannel held = heldChannel.get();
+        if (held != null && (!held.channel.isConnected() || !Objects.equals(held.host, host))) {
+            releaseChannel();
+            held = null;
+        }
+        if (held == null) {
+            held = new HeldChannel(host, client.openChannel(blobPath));
+            heldChannel.set(held);
+        }
+        try {
+            return call.call(held.channel, client.remotePath(blobPath));
+        } catch (final SftpException e) {
+            // a status from the server leaves the channel usable
+            if (e.id != ChannelSftp.SSH_FX_NO_SUCH_FILE
+                && e.id != ChannelSftp.SSH_FX_PERMISSION_DENIED) {
+                releaseChannel();
+            }
+            throw e;
+        } catch (final Exception e) {
+            releaseChannel();
+            throw e;
+        }
+    }
+
+    private void releaseChannel() {
+        final HeldChannel held = heldChannel.get();
+        if (held != null) {
+            heldChannel.remove();
+            client.releaseChannel(held.channel);
+        }
+    }
+
+    private Map<BlobPath, List<ActionListener<Void>>> takeRemovals() {
+        synchronized (removalLock) {
+            final Map<BlobPath, List<ActionListener<Void>>> batch = removals;
+            removals = new LinkedHashMap<>();
+            removalScheduled = false;
+            return batch;
+        }
+    }
+
+    private void removePending() {
+        final Map<BlobPath, List<ActionListener<Void>>> batch = takeRemovals();
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        // the probe and deleteAll take their own sessions
+        releaseChannel();
+        boolean exec = false;
+        try {
+            exec = client.isExecAvailable();
+        } catch (final Exception e) {
+            // remove them one by one
+        }
+        if (exec) {
+            Throwable failure = null;
+            try {
+                client.deleteAll(batch.keySet());
+            } catch (final Throwable t) {
+                failure = t;
+            }
+            for (final List<ActionListener<Void>> listeners : batch.values()) {
+                for (final ActionListener<Void> listener : listeners) {
+                    if (failure == null) {
+                        respond(listener, null);
+                    } else {
+                        fail(listener, failure);
+                    }
+                }
+            }
+            return;
+        }
+
+        for (final Map.Entry<BlobPath, List<ActionListener<Void>>> entry : batch.entrySet()) {
+            Throwable failure = null;
+            try {
+                call(entry.getKey(), new SftpCall<Void>() {
+                    @Override
+                    public Void call(final ChannelSftp channel, final String path)
+                        throws Exception {
+                        try {
+                            channel.rm(path);
+                        } catch (final SftpException e) {
+                            if (e.id != ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+                                throw e;
+                            }
+                        }
+                        return null;
+                    }
+                });
+            } catch (final Throwable t) {
+                failure = t;
+            }
+            for (final ActionListener<Void> listener : entry.getValue()) {
+                if (failure == null) {
+                    respond(listener, null);
+                } else {
+                    fail(listener, failure);
+                }
+            }
+        }
+    }
+
+    private static <T> void respond(final ActionListener<T> listener, final T result) {
+        try {
+            listener.onResponse(result);
+        } catch (final Exception e) {
+            logger.warn("Failed to notify a listener", e);
+        }
+    }
+
+    private static void fail(final ActionListener<?> listener, final Throwable t) {
+        try {
+            listener.onFailure(t);
+        } catch (final Exception e) {
+            logger.warn("Failed to notify a listener", e);
+        }
+    }
+
+    private interface SftpCall<T> {
+        T call(ChannelSftp channel, String path) throws Exception;
+    }
+
+    private static class HeldChannel {
+        private final SshConfig host;
+
+        private final ChannelSftp channel;
+
+        HeldChannel(final SshConfig host, final ChannelSftp channel) {
+            this.host = host;
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Work queue that makes an I/O thread return its channel before it
+     * waits for the next operation.
+     */
+    private class IdleQueue extends LinkedBlockingQueue<Runnable> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Runnable take() throws InterruptedException {
+            final Runnable task = poll();
+            if (task != null) {
+                return task;
+            }
+            releaseChannel();
+            return super.take();
+        }
+    }
+}
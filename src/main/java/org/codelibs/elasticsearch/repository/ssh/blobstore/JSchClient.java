@@ -19,16 +19,31 @@
 
 package org.codelibs.elasticsearch.repository.ssh.blobstore;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Locale;
+import java.util.Set;
 import java.util.Vector;
 
 import com.jcraft.jsch.*;
-import org.apache.commons.pool2.impl.GenericKeyedObjectPoolConfig;
 import org.codelibs.elasticsearch.repository.ssh.utils.SshConfig;
 import org.codelibs.elasticsearch.repository.ssh.utils.SshPool;
+import org.codelibs.elasticsearch.repository.ssh.utils.SshPoolConfig;
 import org.elasticsearch.common.blobstore.BlobPath;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.repositories.RepositorySettings;
@@ -43,18 +58,36 @@ import com.jcraft.jsch.ChannelSftp.LsEntry;
  */
 public class JSchClient {
 
+    /**
+     * Directory in each container that holds stored blob checksums.
+     */
+    public static final String CHECKSUM_DIR = ".sha256";
+
+    private static final ESLogger logger = Loggers.getLogger(JSchClient.class);
+
     private SshConfig config;
 
     private SshPool sshPool;
 
+    private boolean execAccelerator;
+
+    private volatile Boolean execAvailable;
+
+    private volatile boolean checksumWarned;
+
+    private JSchAsyncClient asyncClient;
+
     public JSchClient(final Settings componentSettings,
         final RepositorySettings repositorySettings,
         final ThreadPool threadPool) throws JSchException {
 
+        final String[] hosts = repositorySettings.settings().getAsArray("host",
+            componentSettings.getAsArray("host"));
+        final int port =
+            repositorySettings.settings().getAsInt("port", componentSettings.getAsInt("port", 22));
+
         SshConfig config = new SshConfig();
-        config.setHost(repositorySettings.settings().get("host", componentSettings.get("host")));
-        config.setPort(
-            repositorySettings.settings().getAsInt("port", componentSettings.getAsInt("port", 22)));
+        config.setPort(port);
         config.setUsername(
             repositorySettings.settings().get("username", componentSettings.get("username")));
         config.setPassword(
@@ -70,16 +103,46 @@ public class JSchClient {
         config.setIgnoreHostKeyChecking(repositorySettings.settings()
             .getAsBoolean("ignore_host_key",
                 componentSettings.getAsBoolean("ignore_host_key", false)));
+        config.setConnectTimeout((int) repositorySettings.settings().getAsTime("connect_timeout",
+            componentSettings.getAsTime("connect_timeout", TimeValue.timeValueSeconds(30)))
+            .getMillis());
 
         if (config.getPassword() == null && config.getPrivateKey() == null) {
             throw new JSchException(
                 "A password and private key for SSH are empty.");
         }
 
-        this.config = config;
+        final List<SshConfig> configs = new ArrayList<>();
+        for (final String host : hosts) {
+            final int index = host.indexOf(':');
+            if (index > 0 && index == host.lastIndexOf(':')) {
+                configs.add(config.copy(host.substring(0, index),
+                    Integer.parseInt(host.substring(index + 1))));
+            } else {
+                configs.add(config.copy(host, port));
+            }
+        }
+        if (configs.isEmpty()) {
+            configs.add(config);
+        }
+
+        final SshPool.Placement placement;
+        final String placementName = repositorySettings.settings().get("placement",
+            componentSettings.get("placement", "failover"));
+        try {
+            placement = SshPool.Placement.valueOf(placementName.toUpperCase(Locale.ROOT));
+        } catch (final IllegalArgumentException e) {
+            throw new JSchException("Unknown placement: " + placementName);
+        }
+
+        this.config = configs.get(0);
+        this.execAccelerator = repositorySettings.settings().getAsBoolean("exec_accelerator",
+            componentSettings.getAsBoolean("exec_accelerator", false));
 
-        GenericKeyedObjectPoolConfig poolConfig = new GenericKeyedObjectPoolConfig();
-        poolConfig.setMaxTotalPerKey(5);
+        SshPoolConfig poolConfig = new SshPoolConfig();
+        poolConfig.setPlacement(placement);
+        poolConfig.setMaxTotalPerKey(repositorySettings.settings()
+            .getAsInt("max_sessions", componentSettings.getAsInt("max_sessions", 5)));
         poolConfig.setMinEvictableIdleTimeMillis(repositorySettings.settings()
             .getAsLong("session_expire", componentSettings.getAsLong("session_expire", 60000L)));
 
@@ -87,12 +150,52 @@ public class JSchClient {
             componentSettings.getAsTime("clean_interval", TimeValue.timeValueMinutes(1)));
         poolConfig.setJmxEnabled(false);
         poolConfig.setTimeBetweenEvictionRunsMillis(cleanInterval.getMillis());
-        this.sshPool = new SshPool(config, poolConfig);
+        TimeValue retryInterval = repositorySettings.settings().getAsTime("failover_retry_interval",
+            componentSettings.getAsTime("failover_retry_interval", TimeValue.timeValueSeconds(30)));
+        poolConfig.setRetryInterval(retryInterval.getMillis());
+        TimeValue acquireTimeout = repositorySettings.settings().getAsTime("session_acquire_timeout",
+            componentSettings.getAsTime("session_acquire_timeout", TimeValue.timeValueMinutes(1)));
+        poolConfig.setAcquireTimeout(acquireTimeout.getMillis());
+        poolConfig.setFailureThreshold(repositorySettings.settings().getAsInt(
+            "circuit_breaker_threshold", componentSettings.getAsInt("circuit_breaker_threshold", 5)));
+        TimeValue probeInterval = repositorySettings.settings().getAsTime(
+            "circuit_breaker_probe_interval", componentSettings.getAsTime(
+                "circuit_breaker_probe_interval", TimeValue.timeValueSeconds(10)));
+        poolConfig.setProbeInterval(probeInterval.getMillis());
+        this.sshPool = new SshPool(configs, poolConfig, threadPool);
+        this.asyncClient = new JSchAsyncClient(componentSettings, this, repositorySettings
+            .settings().getAsInt("io_threads", componentSettings.getAsInt("io_threads", 4)));
+
+    }
 
+    /**
+     * @return the asynchronous variant of this client
+     */
+    public JSchAsyncClient getAsyncClient() {
+        return asyncClient;
     }
 
     public String getInfoString() {
-        return config.getUsername() + "@" + config.getHost() + ":" + config.getLocation();
+        final StringBuilder buf = new StringBuilder();
+        for (final SshConfig c : sshPool.getConfigs()) {
+            if (buf.length() > 0) {
+                buf.append(',');
+            }
+            buf.append(c.getHost());
+        }
+        return config.getUsername() + "@" + buf + ":" + config.getLocation();
+    }
+
+    /**
+     * Returns the shard directory of the path, which decides the host in
+     * striped placement, or null if the path belongs to the primary host.
+     */
+    private String routingKey(final BlobPath blobPath) {
+        final String[] paths = blobPath.toArray();
+        if (paths.length >= 3 && "indices".equals(paths[0])) {
+            return paths[0] + "/" + paths[1] + "/" + paths[2];
+        }
+        return null;
     }
 
     private ChannelExec openExecChannel(Session session) throws JSchException {
@@ -106,6 +209,39 @@ public class JSchClient {
         return channel;
     }
 
+    /**
+     * Open an SFTP channel on a pooled session. When the server refuses the
+     * channel, the caller waits and tries again with a lower concurrency.
+     */
+    private ChannelSftp openSftpChannel(final String routingKey) throws JSchException {
+        return openSftpChannel(null, routingKey);
+    }
+
+    /**
+     * @param host a specific host, or null to select it by the routing key
+     */
+    private ChannelSftp openSftpChannel(final SshConfig host, final String routingKey)
+        throws JSchException {
+        final long deadline = System.currentTimeMillis() + sshPool.getAcquireTimeout();
+        while (true) {
+            final Session session = host == null ? sshPool.getSession(routingKey)
+                : sshPool.getSession(host);
+            try {
+                final ChannelSftp channel = openSftpChannel(session);
+                sshPool.onChannelOpened(session);
+                return channel;
+            } catch (final JSchException e) {
+                if (!SshPool.isOverload(e)) {
+                    sshPool.invalidateSession(session);
+                    throw e;
+                }
+                if (!sshPool.onOverload(session, deadline)) {
+                    throw e;
+                }
+            }
+        }
+    }
+
     public void closeChannel(ChannelSftp channel) {
         if (channel != null) {
             channel.disconnect();
@@ -118,42 +254,97 @@ public class JSchClient {
         }
     }
 
-    public void mkdirs(final BlobPath blobPath) throws SftpException, JSchException {
+    /**
+     * Open an SFTP channel for the path on a pooled session, which is
+     * returned by {@link #releaseChannel(ChannelSftp)}.
+     */
+    ChannelSftp openChannel(final BlobPath blobPath) throws JSchException {
+        return openSftpChannel(routingKey(blobPath));
+    }
+
+    void releaseChannel(final ChannelSftp channel) {
+        final Session session;
+        try {
+            session = channel.getSession();
+        } catch (final JSchException e) {
+            closeChannel(channel);
+            return;
+        }
+        closeChannel(channel);
+        sshPool.returnSession(session);
+    }
+
+    /**
+     * Returns the host of the path in striped placement, or null if the
+     * path belongs to the primary host.
+     */
+    SshConfig host(final BlobPath blobPath) {
+        return sshPool.getPlacement() == SshPool.Placement.STRIPED
+            ? sshPool.route(routingKey(blobPath)) : null;
+    }
+
+    String remotePath(final BlobPath blobPath) {
+        return config.getLocation() + "/" + blobPath.buildAsString("/");
+    }
+
+    static BlobPath parent(final BlobPath blobPath) {
         final String[] paths = blobPath.toArray();
-        if (paths.length == 0) {
+        BlobPath parent = BlobPath.cleanPath();
+        for (int i = 0; i < paths.length - 1; i++) {
+            parent = parent.add(paths[i]);
+        }
+        return parent;
+    }
+
+    /**
+     * Create the directory and its parents. Writes call this only when
+     * the directory of a blob does not exist yet.
+     * @param blobPath
+     */
+    public void mkdirs(final BlobPath blobPath) throws SftpException, JSchException {
+        if (blobPath.toArray().length == 0) {
             return;
         }
 
-        Session session = sshPool.getSession();
-        ChannelSftp channel = openSftpChannel(session);
+        ChannelSftp channel = openSftpChannel(routingKey(blobPath));
+        Session session = channel.getSession();
+        try {
+            mkdirs(channel, blobPath);
+        } finally {
+            closeChannel(channel);
+            sshPool.returnSession(session);
+        }
+    }
 
+    /**
+     * Create the directory and its parents on a channel the caller holds,
+     * so a write does not need a second session to create its directory.
+     * @param channel
+     * @param blobPath
+     */
+    void mkdirs(final ChannelSftp channel, final BlobPath blobPath) throws SftpException {
         final StringBuilder buf = new StringBuilder();
         buf.append(config.getLocation());
-        try {
-            for (final String p : paths) {
-                buf.append('/').append(p);
-                final String path = buf.toString();
-                int retry = 5;
-                while (retry > 0) {
+        for (final String p : blobPath.toArray()) {
+            buf.append('/').append(p);
+            final String path = buf.toString();
+            int retry = 5;
+            while (retry > 0) {
+                try {
+                    mkdirIfNotExists(channel, path);
+                    retry = 0;
+                } catch (final SftpException e) {
                     try {
-                        mkdirIfNotExists(channel, path);
-                        retry = 0;
-                    } catch (final SftpException e) {
-                        try {
-                            Thread.sleep(1000L);
-                        } catch (final InterruptedException e1) {
-                            // ignore
-                        }
-                        if (retry == 0) {
-                            throw e;
-                        }
-                        retry--;
+                        Thread.sleep(1000L);
+                    } catch (final InterruptedException e1) {
+                        // ignore
+                    }
+                    if (retry == 0) {
+                        throw e;
                     }
+                    retry--;
                 }
             }
-        } finally {
-            closeChannel(channel);
-            sshPool.returnSession(session);
         }
     }
 
@@ -166,13 +357,24 @@ public class JSchClient {
     }
 
     public void rmdir(final BlobPath blobPath) throws JSchException {
+        final String routingKey = routingKey(blobPath);
+        if (sshPool.getPlacement() == SshPool.Placement.STRIPED && routingKey == null) {
+            // shard directories below this path may live on any host
+            for (final SshConfig c : sshPool.getConfigs()) {
+                rmdir(sshPool.getSession(c), blobPath);
+            }
+        } else {
+            rmdir(sshPool.getSession(routingKey), blobPath);
+        }
+    }
+
+    private void rmdir(final Session session, final BlobPath blobPath) throws JSchException {
         //TODO: any better solution?
-        Session session = sshPool.getSession();
         ChannelExec channel = null;
         try {
             channel = openExecChannel(session);
             channel.setCommand(
-                "/bin/rm -rf " + config.getLocation() + "/" + blobPath.buildAsString("/"));
+                "/bin/rm -rf " + quote(config.getLocation() + "/" + blobPath.buildAsString("/")));
             channel.connect();
             //channel.rmdir(location + "/" + blobPath.buildAsString("/"));
         } finally {
@@ -181,11 +383,569 @@ public class JSchClient {
         }
     }
 
+    /**
+     * Returns true if bulk metadata operations can run as a single remote
+     * command, which requires exec_accelerator to be enabled.
+     */
+    public boolean isExecAccelerated() throws JSchException {
+        return execAccelerator && isExecAvailable();
+    }
+
+    /**
+     * Returns true if the server allows shell exec with GNU find.
+     * The server is probed until it gives a definite answer: the probe
+     * command runs, or the server refuses it or it exits with an error.
+     * If the probe could not reach the server, the error is thrown and
+     * the next call probes again.
+     */
+    public boolean isExecAvailable() throws JSchException {
+        Boolean available = execAvailable;
+        if (available == null) {
+            final Session session = sshPool.getSession();
+            try {
+                // the location may not exist before the first write
+                exec(session, "find / -maxdepth 0 -printf ''", null, null);
+                available = Boolean.TRUE;
+            } catch (final ExitStatusException e) {
+                available = Boolean.FALSE;
+            } catch (final JSchException e) {
+                if (!session.isConnected() || SshPool.isOverload(e)) {
+                    throw e;
+                }
+                // the session is fine, so the server refused the exec request
+                available = Boolean.FALSE;
+            } finally {
+                sshPool.returnSession(session);
+            }
+            execAvailable = available;
+        }
+        return available;
+    }
+
+    /**
+     * List regular files under the path.
+     * With the exec accelerator, the whole listing is one remote find command.
+     * @param blobPath
+     * @param recursive true to walk the whole subtree
+     * @return files with names relative to the path
+     */
+    public List<RemoteFile> listFiles(final BlobPath blobPath, final boolean recursive)
+        throws SftpException, JSchException {
+        if (!isExecAccelerated()) {
+            final List<RemoteFile> files = new ArrayList<>();
+            try {
+                listFiles(blobPath, "", recursive, files);
+            } catch (final SftpException e) {
+                if (e.id != ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+                    throw e;
+                }
+            }
+            return files;
+        }
+
+        final String routingKey = routingKey(blobPath);
+        final List<SshConfig> targets = new ArrayList<>();
+        if (recursive && sshPool.getPlacement() == SshPool.Placement.STRIPED
+            && routingKey == null) {
+            targets.addAll(sshPool.getConfigs());
+        } else {
+            targets.add(null);
+        }
+
+        final Map<String, RemoteFile> files = new LinkedHashMap<>();
+        final String dir = quote(config.getLocation() + "/" + blobPath.buildAsString("/"));
+        final String command = "if [ -d " + dir + " ]; then find " + dir
+            + " -mindepth 1" + (recursive ? "" : " -maxdepth 1")
+            + " -type f -printf '%P\\t%s\\t%T@\\n'; fi";
+        for (final SshConfig target : targets) {
+            final Session session = target == null ? sshPool.getSession(routingKey)
+                : sshPool.getSession(target);
+            try {
+                exec(session, command, null, new OutputHandler() {
+                    @Override
+                    public void line(final String line) {
+                        final String[] values = line.split("\t");
+                        if (values.length == 3) {
+                            final int dot = values[2].indexOf('.');
+                            files.put(values[0], new RemoteFile(values[0],
+                                Long.parseLong(values[1]),
+                                Long.parseLong(dot < 0 ? values[2] : values[2].substring(0, dot))));
+                        }
+                    }
+                });
+            } finally {
+                sshPool.returnSession(session);
+            }
+        }
+        return new ArrayList<>(files.values());
+    }
+
+    private void listFiles(final BlobPath blobPath, final String prefix, final boolean recursive,
+        final List<RemoteFile> files) throws SftpException, JSchException {
+        for (final LsEntry entry : ls(blobPath)) {
+            final String name = entry.getFilename();
+            if (entry.getAttrs().isReg()) {
+                files.add(new RemoteFile(prefix + name, entry.getAttrs().getSize(),
+                    entry.getAttrs().getMTime()));
+            } else if (recursive && entry.getAttrs().isDir()
+                && !".".equals(name) && !"..".equals(name)) {
+                listFiles(blobPath.add(name), prefix + name + "/", true, files);
+            }
+        }
+    }
+
+    /**
+     * In striped placement, a path above the shard directories is listed
+     * on every host, since its subdirectories are spread over them.
+     * @param blobPath
+     * @return names of the directories in the path
+     */
+    public List<String> listDirectories(final BlobPath blobPath)
+        throws SftpException, JSchException {
+        final Set<String> names = new LinkedHashSet<>();
+        if (sshPool.getPlacement() != SshPool.Placement.STRIPED
+            || routingKey(blobPath) != null) {
+            addDirectories(ls(blobPath), names);
+            return new ArrayList<>(names);
+        }
+
+        SftpException missing = null;
+        int found = 0;
+        for (final SshConfig host : sshPool.getConfigs()) {
+            final ChannelSftp channel = openSftpChannel(host, null);
+            try {
+                @SuppressWarnings("unchecked")
+                final Vector<LsEntry> entries = channel.ls(remotePath(blobPath));
+                addDirectories(entries, names);
+                found++;
+            } catch (final SftpException e) {
+                if (e.id != ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+                    throw e;
+                }
+                missing = e;
+            } finally {
+                releaseChannel(channel);
+            }
+        }
+        if (found == 0 && missing != null) {
+            throw missing;
+        }
+        return new ArrayList<>(names);
+    }
+
+    private static void addDirectories(final Vector<LsEntry> entries, final Set<String> names) {
+        for (final LsEntry entry : entries) {
+            final String name = entry.getFilename();
+            if (entry.getAttrs().isDir() && !name.startsWith(".")) {
+                names.add(name);
+            }
+        }
+    }
+
+    /**
+     * Write blobs in one tar stream extracted by the remote tar command,
+     * which saves the per-file open and close round trips of SFTP.
+     * @param blobs contents by path
+     */
+    public void putAll(final Map<BlobPath, byte[]> blobs) throws JSchException {
+        final Map<SshConfig, Map<BlobPath, byte[]>> groups = groupByHost(blobs);
+
+        final long mtime = System.currentTimeMillis() / 1000L;
+        for (final Map.Entry<SshConfig, Map<BlobPath, byte[]>> group : groups.entrySet()) {
+            final Session session = group.getKey() == null ? sshPool.getSession((String) null)
+                : sshPool.getSession(group.getKey());
+            try {
+                final Map<BlobPath, byte[]> entries = group.getValue();
+                exec(session, "tar -x -m -f - -C " + quote(config.getLocation()),
+                    new InputWriter() {
+                        @Override
+                        public void write(final OutputStream out) throws IOException {
+                            final TarWriter tar = new TarWriter(out);
+                            for (final Map.Entry<BlobPath, byte[]> entry : entries.entrySet()) {
+                                tar.putEntry(entry.getKey().buildAsString("/"),
+                                    entry.getValue(), mtime);
+                            }
+                            tar.finish();
+                        }
+                    }, null);
+            } finally {
+                sshPool.returnSession(session);
+            }
+        }
+    }
+
+    /**
+     * Confirm blobs against their SHA-256 checksums on the server and store
+     * each checksum next to the blob, in one remote script per host.
+     * @param checksums hex SHA-256 by path
+     */
+    public void verifyChecksums(final Map<BlobPath, String> checksums) throws JSchException {
+        if (!isExecAvailable()) {
+            if (!checksumWarned) {
+                checksumWarned = true;
+                logger.warn("Checksums are not verified because {} does not allow shell exec.",
+                    getInfoString());
+            }
+            return;
+        }
+
+        for (final Map.Entry<SshConfig, Map<BlobPath, String>> group : groupByHost(checksums)
+            .entrySet()) {
+            final StringBuilder script = new StringBuilder("fail=0\n");
+            for (final Map.Entry<BlobPath, String> entry : group.getValue().entrySet()) {
+                final String[] paths = entry.getKey().toArray();
+                final String name = paths[paths.length - 1];
+                final String file = config.getLocation() + "/"
+                    + entry.getKey().buildAsString("/");
+                final String checksumDir = file.substring(0, file.length() - name.length())
+                    + CHECKSUM_DIR;
+                script.append("h=$(sha256sum -b -- ").append(quote(file))
+                    .append(" | cut -c1-64) && [ \"$h\" = ").append(quote(entry.getValue()))
+                    .append(" ] && mkdir -p ").append(quote(checksumDir))
+                    .append(" && printf '%s\\n' \"$h\" > ").append(quote(checksumDir + "/" + name))
+                    .append(" || { printf '%s\\n' ").append(quote(file))
+                    .append(" >&2; fail=1; }\n");
+            }
+            script.append("exit $fail\n");
+
+            final Session session = group.getKey() == null ? sshPool.getSession((String) null)
+                : sshPool.getSession(group.getKey());
+            try {
+                final byte[] input = script.toString().getBytes(StandardCharsets.UTF_8);
+                exec(session, "sh -s", new InputWriter() {
+                    @Override
+                    public void write(final OutputStream out) throws IOException {
+                        out.write(input);
+                    }
+                }, null);
+            } catch (final ExitStatusException e) {
+                // the script exits with an error only for blobs that do not match
+                throw new JSchException("Checksum mismatch: " + e.getMessage(), e);
+            } finally {
+                sshPool.returnSession(session);
+            }
+        }
+    }
+
+    /**
+     * Check every blob that has a stored checksum under the path. Hashing
+     * runs on the server with the given parallelism, so no blob is downloaded.
+     * @param blobPath
+     * @param parallelism
+     * @return
+     */
+    public ChecksumReport verifyStoredChecksums(final BlobPath blobPath, final int parallelism)
+        throws JSchException {
+        if (!isExecAvailable()) {
+            throw new JSchException(getInfoString() + " does not allow shell exec.");
+        }
+
+        final List<SshConfig> targets = new ArrayList<>();
+        if (sshPool.getPlacement() == SshPool.Placement.STRIPED
+            && routingKey(blobPath) == null) {
+            targets.addAll(sshPool.getConfigs());
+        } else {
+            targets.add(null);
+        }
+
+        final String check = "for s; do d=${s%/" + CHECKSUM_DIR + "/*}; n=${s##*/}; "
+            + "[ \"$(sha256sum -b -- \"$d/$n\" 2>/dev/null | cut -c1-64)\" = \"$(cat -- \"$s\")\" ]"
+            + " || printf \"FAILED\\t%s\\n\" \"$d/$n\"; done; printf \"CHECKED\\t%d\\n\" $#";
+        final String command = "cd " + quote(config.getLocation() + "/" + blobPath.buildAsString("/"))
+            + " && find . -path '*/" + CHECKSUM_DIR + "/*' -type f -print0"
+            + " | xargs -0 -r -n 64 -P " + Math.max(1, parallelism) + " sh -c " + quote(check)
+            + " sh";
+        final String prefix = blobPath.buildAsString("/");
+        final ChecksumReport report = new ChecksumReport();
+        for (final SshConfig target : targets) {
+            final Session session = target == null ? sshPool.getSession(routingKey(blobPath))
+                : sshPool.getSession(target);
+            try {
+                exec(session, command, null, new OutputHandler() {
+                    @Override
+                    public void line(final String line) {
+                        final String[] values = line.split("\t", 2);
+                        if (values.length != 2) {
+                            return;
+                        }
+                        if ("CHECKED".equals(values[0])) {
+                            report.addChecked(Long.parseLong(values[1]));
+                        } else if ("FAILED".equals(values[0])) {
+                            final String path = values[1].startsWith("./") ? values[1].substring(2)
+                                : values[1];
+                            report.addFailure(prefix.isEmpty() ? path : prefix + "/" + path);
+                        }
+                    }
+                });
+            } finally {
+                sshPool.returnSession(session);
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Delete blobs and their stored checksums. With shell exec, each host
+     * gets one rm command fed by xargs instead of a round trip per blob.
+     * Blobs that do not exist are ignored.
+     * @param blobPaths
+     */
+    public void deleteAll(final Collection<BlobPath> blobPaths)
+        throws SftpException, JSchException {
+        if (!isExecAvailable()) {
+            for (final BlobPath blobPath : blobPaths) {
+                try {
+                    rm(blobPath);
+                } catch (final SftpException e) {
+                    if (e.id != ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+                        throw e;
+                    }
+                }
+            }
+            return;
+        }
+
+        final Map<BlobPath, Boolean> blobs = new LinkedHashMap<>();
+        for (final BlobPath blobPath : blobPaths) {
+            blobs.put(blobPath, Boolean.TRUE);
+        }
+        final String command = deleteCommand(config.getLocation());
+        for (final Map.Entry<SshConfig, Map<BlobPath, Boolean>> group : groupByHost(blobs)
+            .entrySet()) {
+            final byte[] input = deleteInput(group.getValue().keySet());
+            final Session session = group.getKey() == null ? sshPool.getSession((String) null)
+                : sshPool.getSession(group.getKey());
+            try {
+                exec(session, command, new InputWriter() {
+                    @Override
+                    public void write(final OutputStream out) throws IOException {
+                        out.write(input);
+                    }
+                }, null);
+            } finally {
+                sshPool.returnSession(session);
+            }
+        }
+    }
+
+    /**
+     * Command that removes the paths read from its standard input. The
+     * shell changes to the location first, so ~/ is expanded as in other
+     * commands and the paths are relative to it.
+     */
+    static String deleteCommand(final String location) {
+        return "cd " + quote(location) + " && xargs -0 -r rm -f --";
+    }
+
+    /**
+     * NUL-separated paths of the blobs and their stored checksums,
+     * relative to the location.
+     */
+    static byte[] deleteInput(final Collection<BlobPath> blobPaths) {
+        final ByteArrayOutputStream input = new ByteArrayOutputStream();
+        for (final BlobPath blobPath : blobPaths) {
+            final String file = blobPath.buildAsString("/");
+            final int index = file.lastIndexOf('/');
+            final String checksumFile = file.substring(0, index + 1) + CHECKSUM_DIR + "/"
+                + file.substring(index + 1);
+            for (final String path : new String[] { file, checksumFile }) {
+                final byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+                input.write(bytes, 0, bytes.length);
+                input.write(0);
+            }
+        }
+        return input.toByteArray();
+    }
+
+    /**
+     * Returns true if the other client stores blobs on the same servers
+     * with the same placement, so a blob path maps to the same host.
+     * @param other
+     * @return
+     */
+    public boolean isSameServer(final JSchClient other) {
+        final List<SshConfig> configs = sshPool.getConfigs();
+        final List<SshConfig> otherConfigs = other.sshPool.getConfigs();
+        if (configs.size() != otherConfigs.size()
+            || sshPool.getPlacement() != other.sshPool.getPlacement()) {
+            return false;
+        }
+        for (int i = 0; i < configs.size(); i++) {
+            if (!configs.get(i).getHost().equals(otherConfigs.get(i).getHost())
+                || configs.get(i).getPort() != otherConfigs.get(i).getPort()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copy blobs on the server into the location of the target client,
+     * which must be on the same server. cp --reflink=auto shares data
+     * blocks on file systems that support it. Stored checksums are copied
+     * with their blobs. The SFTP copy-data extension is not available
+     * in JSch, so this requires shell exec.
+     * @param blobs target paths by source path
+     * @param target
+     */
+    public void copy(final Map<BlobPath, BlobPath> blobs, final JSchClient target)
+        throws JSchException {
+        if (!isSameServer(target)) {
+            throw new JSchException(target.getInfoString() + " is not on " + getInfoString());
+        }
+        if (!isExecAvailable()) {
+            throw new JSchException(getInfoString() + " does not allow shell exec.");
+        }
+
+        for (final Map.Entry<SshConfig, Map<BlobPath, BlobPath>> group : groupByHost(blobs)
+            .entrySet()) {
+            final StringBuilder script = new StringBuilder("fail=0\n");
+            for (final Map.Entry<BlobPath, BlobPath> entry : group.getValue().entrySet()) {
+                final String source = config.getLocation() + "/" + entry.getKey().buildAsString("/");
+                final String dest = target.config.getLocation() + "/"
+                    + entry.getValue().buildAsString("/");
+                final String sourceName = source.substring(source.lastIndexOf('/') + 1);
+                final String sourceDir = source.substring(0, source.lastIndexOf('/'));
+                final String destName = dest.substring(dest.lastIndexOf('/') + 1);
+                final String destDir = dest.substring(0, dest.lastIndexOf('/'));
+                script.append("mkdir -p ").append(quote(destDir))
+                    .append(" && { cp --reflink=auto -- ").append(quote(source)).append(' ')
+                    .append(quote(dest)).append(" 2>/dev/null || cp -- ").append(quote(source))
+                    .append(' ').append(quote(dest)).append("; } || { printf '%s\\n' ")
+                    .append(quote(source)).append(" >&2; fail=1; }\n");
+                final String sourceChecksum = sourceDir + "/" + CHECKSUM_DIR + "/" + sourceName;
+                final String destChecksumDir = destDir + "/" + CHECKSUM_DIR;
+                script.append("[ ! -f ").append(quote(sourceChecksum)).append(" ] || { mkdir -p ")
+                    .append(quote(destChecksumDir)).append(" && cp -- ")
+                    .append(quote(sourceChecksum)).append(' ')
+                    .append(quote(destChecksumDir + "/" + destName)).append("; }\n");
+            }
+            script.append("exit $fail\n");
+
+            final Session session = group.getKey() == null ? sshPool.getSession((String) null)
+                : sshPool.getSession(group.getKey());
+            try {
+                final byte[] input = script.toString().getBytes(StandardCharsets.UTF_8);
+                exec(session, "sh -s", new InputWriter() {
+                    @Override
+                    public void write(final OutputStream out) throws IOException {
+                        out.write(input);
+                    }
+                }, null);
+            } catch (final JSchException e) {
+                throw new JSchException("Failed to copy blobs: " + e.getMessage(), e);
+            } finally {
+                sshPool.returnSession(session);
+            }
+        }
+    }
+
+    private <T> Map<SshConfig, Map<BlobPath, T>> groupByHost(final Map<BlobPath, T> blobs) {
+        final Map<SshConfig, Map<BlobPath, T>> groups = new LinkedHashMap<>();
+        for (final Map.Entry<BlobPath, T> entry : blobs.entrySet()) {
+            final SshConfig target = sshPool.getPlacement() == SshPool.Placement.STRIPED
+                ? sshPool.route(routingKey(entry.getKey())) : null;
+            Map<BlobPath, T> group = groups.get(target);
+            if (group == null) {
+                group = new LinkedHashMap<>();
+                groups.put(target, group);
+            }
+            group.put(entry.getKey(), entry.getValue());
+        }
+        return groups;
+    }
+
+    /**
+     * A command ran and exited with a nonzero status.
+     */
+    private static class ExitStatusException extends JSchException {
+        private static final long serialVersionUID = 1L;
+
+        ExitStatusException(final String message) {
+            super(message);
+        }
+    }
+
+    private interface OutputHandler {
+        void line(String line) throws IOException;
+    }
+
+    private interface InputWriter {
+        void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Run a command, feed its standard input from the writer and
+     * stream its output to the handler.
+     */
+    private void exec(final Session session, final String command, final InputWriter input,
+        final OutputHandler handler) throws JSchException {
+        ChannelExec channel = null;
+        try {
+            channel = openExecChannel(session);
+            channel.setCommand(command);
+            final OutputStream out = input != null ? channel.getOutputStream() : null;
+            if (input == null) {
+                channel.setInputStream(null);
+            }
+            final ByteArrayOutputStream err = new ByteArrayOutputStream();
+            channel.setErrStream(err);
+            final InputStream in = channel.getInputStream();
+            channel.connect();
+            sshPool.onChannelOpened(session);
+            if (out != null) {
+                try {
+                    input.write(out);
+                } finally {
+                    out.close();
+                }
+            }
+            final BufferedReader reader =
+                new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (handler != null) {
+                    handler.line(line);
+                }
+            }
+            while (!channel.isClosed()) {
+                Thread.sleep(10L);
+            }
+            if (channel.getExitStatus() != 0) {
+                throw new ExitStatusException("Command exited with " + channel.getExitStatus()
+                    + ": " + new String(err.toByteArray(), StandardCharsets.UTF_8).trim());
+            }
+        } catch (final IOException e) {
+            throw new JSchException("Failed to read the output of " + command, e);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JSchException("Interrupted while running " + command, e);
+        } finally {
+            closeChannel(channel);
+        }
+    }
+
+    /**
+     * Quote a path for the remote shell, keeping a leading ~/ expandable.
+     */
+    static String quote(final String path) {
+        if (path.startsWith("~/")) {
+            return "~/" + quote(path.substring(2));
+        }
+        return "'" + path.replace("'", "'\\''") + "'";
+    }
+
     public InputStream get(final BlobPath blobPath) throws SftpException, JSchException {
-        final Session session = sshPool.getSession();
-        final ChannelSftp channel = openSftpChannel(session);
-        final InputStream is = channel.get(config.getLocation() + "/"
-            + blobPath.buildAsString("/"));
+        final ChannelSftp channel = openSftpChannel(routingKey(blobPath));
+        final Session session = channel.getSession();
+        final InputStream is;
+        try {
+            is = channel.get(config.getLocation() + "/" + blobPath.buildAsString("/"));
+        } catch (final SftpException e) {
+            closeChannel(channel);
+            sshPool.returnSession(session);
+            throw e;
+        }
         return new InputStream() {
             @Override
             public int read() throws IOException {
@@ -199,19 +959,38 @@ public class JSchClient {
 
             @Override
             public void close() throws IOException {
-                is.close();
-                closeChannel(channel);
-                sshPool.returnSession(session);
+                try {
+                    is.close();
+                } finally {
+                    closeChannel(channel);
+                    sshPool.returnSession(session);
+                }
             }
 
         };
     }
 
     public OutputStream put(final BlobPath blobPath) throws SftpException, JSchException {
-        final Session session = sshPool.getSession();
-        final ChannelSftp channel = openSftpChannel(session);
-        final OutputStream os = channel.put(config.getLocation() + "/"
-            + blobPath.buildAsString("/"));
+        final ChannelSftp channel = openSftpChannel(routingKey(blobPath));
+        final Session session = channel.getSession();
+        final String path = config.getLocation() + "/" + blobPath.buildAsString("/");
+        OutputStream out;
+        try {
+            try {
+                out = channel.put(path);
+            } catch (final SftpException e) {
+                if (e.id != ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+                    throw e;
+                }
+                mkdirs(channel, parent(blobPath));
+                out = channel.put(path);
+            }
+        } catch (final SftpException e) {
+            closeChannel(channel);
+            sshPool.returnSession(session);
+            throw e;
+        }
+        final OutputStream os = out;
         return new OutputStream() {
 
             @Override
@@ -226,16 +1005,65 @@ public class JSchClient {
 
             @Override
             public void close() throws IOException {
-                os.close();
-                closeChannel(channel);
-                sshPool.returnSession(session);
+                try {
+                    os.close();
+                } finally {
+                    closeChannel(channel);
+                    sshPool.returnSession(session);
+                }
             }
         };
     }
 
+    /**
+     * Upload the stream as the blob. JSch reads the stream straight into
+     * its outgoing packet buffer, so no intermediate copy buffer is needed.
+     * @param blobPath
+     * @param inputStream
+     */
+    public void put(final BlobPath blobPath, final InputStream inputStream)
+        throws SftpException, JSchException {
+        ChannelSftp channel = openSftpChannel(routingKey(blobPath));
+        Session session = channel.getSession();
+        final String path = config.getLocation() + "/" + blobPath.buildAsString("/");
+        try {
+            try {
+                channel.put(inputStream, path);
+            } catch (final SftpException e) {
+                // the file is opened before the stream is read
+                if (e.id != ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+                    throw e;
+                }
+                mkdirs(channel, parent(blobPath));
+                channel.put(inputStream, path);
+            }
+        } finally {
+            closeChannel(channel);
+            sshPool.returnSession(session);
+        }
+    }
+
+    /**
+     * Append bytes to the end of the file, creating it if it does not exist.
+     * @param blobPath
+     * @param bytes
+     */
+    public void append(final BlobPath blobPath, final byte[] bytes)
+        throws SftpException, JSchException {
+        ChannelSftp channel = openSftpChannel(routingKey(blobPath));
+        Session session = channel.getSession();
+        try {
+            channel.put(new ByteArrayInputStream(bytes),
+                config.getLocation() + "/" + blobPath.buildAsString("/"), ChannelSftp.APPEND);
+        } finally {
+            closeChannel(channel);
+            sshPool.returnSession(session);
+        }
+    }
+
     public Vector<LsEntry> ls(final BlobPath blobPath) throws SftpException, JSchException {
-        Session session = sshPool.getSession();
-        ChannelSftp channel = openSftpChannel(session);
+        ChannelSftp channel = openSftpChannel(routingKey(blobPath));
+        Session session = channel.getSession();
         try {
             @SuppressWarnings("unchecked")
             final Vector<LsEntry> entities =
@@ -247,9 +1075,20 @@ public class JSchClient {
         }
     }
 
+    public SftpATTRS stat(final BlobPath blobPath) throws SftpException, JSchException {
+        ChannelSftp channel = openSftpChannel(routingKey(blobPath));
+        Session session = channel.getSession();
+        try {
+            return channel.stat(config.getLocation() + "/" + blobPath.buildAsString("/"));
+        } finally {
+            closeChannel(channel);
+            sshPool.returnSession(session);
+        }
+    }
+
     public void rm(final BlobPath blobPath) throws SftpException, JSchException {
-        Session session = sshPool.getSession();
-        ChannelSftp channel = openSftpChannel(session);
+        ChannelSftp channel = openSftpChannel(routingKey(blobPath));
+        Session session = channel.getSession();
         try {
             channel.rm(config.getLocation() + "/" + blobPath.buildAsString("/"));
         } finally {
@@ -258,13 +1097,13 @@ public class JSchClient {
         }
     }
 
-    public void move(final String sourceBlobName, final String targetBlobName)
+    public void move(final BlobPath sourcePath, final BlobPath targetPath)
         throws SftpException, JSchException {
-        Session session = sshPool.getSession();
-        ChannelSftp channel = openSftpChannel(session);
+        ChannelSftp channel = openSftpChannel(routingKey(sourcePath));
+        Session session = channel.getSession();
         try {
-            channel.rename(config.getLocation() + "/" + sourceBlobName,
-                config.getLocation() + "/" + targetBlobName);
+            channel.rename(config.getLocation() + "/" + sourcePath.buildAsString("/"),
+                config.getLocation() + "/" + targetPath.buildAsString("/"));
         } finally {
             closeChannel(channel);
             sshPool.returnSession(session);
@@ -272,6 +1111,7 @@ public class JSchClient {
     }
 
     public void close() {
+        asyncClient.close();
         sshPool.close();
     }
 
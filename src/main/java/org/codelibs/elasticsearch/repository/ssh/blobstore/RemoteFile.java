@@ -0,0 +1,56 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.codelibs.elasticsearch.repository.ssh.blobstore;
+
+/**
+ * A regular file found on the SSH server.
+ */
+public class RemoteFile {
+
+    private final String name;
+
+    private final long size;
+
+    private final long mtime;
+
+    /**
+     * @param name a path relative to the listed directory
+     * @param size
+     * @param mtime seconds since the epoch
+     */
+    public RemoteFile(final String name, final long size, final long mtime) {
+        this.name = name;
+        this.size = size;
+        this.mtime = mtime;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getMTime() {
+        return mtime;
+    }
+
+}
@@ -0,0 +1,195 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.codelibs.elasticsearch.repository.ssh.blobstore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codelibs.elasticsearch.repository.ssh.utils.Checksums;
+import org.elasticsearch.common.blobstore.BlobPath;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+
+/**
+ * Size-bounded local disk cache for immutable metadata blobs.
+ * Entries are keyed by the remote path, size and modification time,
+ * and the least recently used entries are evicted first.
+ */
+public class SshBlobCache {
+
+    private static final ESLogger logger = Loggers.getLogger(SshBlobCache.class);
+
+    private static final String[] CACHEABLE_PREFIXES = { "index-", "snap-", "meta-" };
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path directory;
+
+    private final long maxSize;
+
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long size;
+
+    public SshBlobCache(final Path directory, final long maxSize) throws IOException {
+        this.directory = directory;
+        this.maxSize = maxSize;
+
+        Files.createDirectories(directory);
+        load();
+    }
+
+    /**
+     * Returns true if the blob is never rewritten once created.
+     * @param blobName
+     * @return
+     */
+    public static boolean isCacheable(final String blobName) {
+        for (final String prefix : CACHEABLE_PREFIXES) {
+            if (blobName.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static String key(final BlobPath blobPath, final long length, final long mtime) {
+        return blobPath.buildAsString("/") + "@" + length + "@" + mtime;
+    }
+
+    public boolean accepts(final long length) {
+        return length <= maxSize;
+    }
+
+    /**
+     * open a cached blob
+     * @param key
+     * @return a stream, or null if the blob is not cached
+     */
+    public InputStream get(final String key) throws IOException {
+        final String fileName = fileName(key);
+        synchronized (entries) {
+            if (entries.get(fileName) == null) {
+                return null;
+            }
+            try {
+                return Files.newInputStream(directory.resolve(fileName));
+            } catch (final NoSuchFileException e) {
+                size -= entries.remove(fileName);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * store a blob and open it from the cache
+     * @param key
+     * @param inputStream
+     * @return
+     */
+    public InputStream put(final String key, final InputStream inputStream) throws IOException {
+        final String fileName = fileName(key);
+        final Path file = directory.resolve(fileName);
+        final Path tempFile = Files.createTempFile(directory, fileName, TEMP_SUFFIX);
+        try {
+            try (OutputStream os = Files.newOutputStream(tempFile)) {
+                Streams.copy(inputStream, os);
+            }
+            final long length = Files.size(tempFile);
+            synchronized (entries) {
+                Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+                final Long old = entries.put(fileName, length);
+                size += length - (old == null ? 0 : old);
+                evict(fileName);
+                return Files.newInputStream(file);
+            }
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    private void evict(final String keep) {
+        final Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (size > maxSize && it.hasNext()) {
+            final Map.Entry<String, Long> entry = it.next();
+            if (entry.getKey().equals(keep)) {
+                continue;
+            }
+            try {
+                Files.deleteIfExists(directory.resolve(entry.getKey()));
+            } catch (final IOException e) {
+                logger.warn("Failed to delete cached blob {}", e, entry.getKey());
+            }
+            size -= entry.getValue();
+            it.remove();
+        }
+    }
+
+    private void load() throws IOException {
+        final List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (final Path file : stream) {
+                if (file.getFileName().toString().endsWith(TEMP_SUFFIX)) {
+                    Files.deleteIfExists(file);
+                } else {
+                    files.add(file);
+                }
+            }
+        }
+        final Map<Path, Long> lastAccessed = new LinkedHashMap<>();
+        for (final Path file : files) {
+            lastAccessed.put(file, Files.getLastModifiedTime(file).toMillis());
+        }
+        Collections.sort(files, new Comparator<Path>() {
+            @Override
+            public int compare(final Path p1, final Path p2) {
+                return Long.compare(lastAccessed.get(p1), lastAccessed.get(p2));
+            }
+        });
+        synchronized (entries) {
+            for (final Path file : files) {
+                final long length = Files.size(file);
+                entries.put(file.getFileName().toString(), length);
+                size += length;
+            }
+            evict(null);
+        }
+    }
+
+    private static String fileName(final String key) {
+        return Checksums.toHex(Checksums.digest("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -19,13 +19,24 @@
 
 package org.codelibs.elasticsearch.repository.ssh.blobstore;
 
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
 
+import org.codelibs.elasticsearch.repository.ssh.utils.Checksums;
+import org.elasticsearch.action.support.PlainActionFuture;
 import org.elasticsearch.common.blobstore.BlobMetaData;
 import org.elasticsearch.common.blobstore.BlobPath;
 import org.elasticsearch.common.blobstore.support.AbstractBlobContainer;
@@ -33,10 +44,10 @@ import org.elasticsearch.common.blobstore.support.PlainBlobMetaData;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.collect.MapBuilder;
 
+import com.jcraft.jsch.ChannelSftp;
 import com.jcraft.jsch.ChannelSftp.LsEntry;
-import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.SftpATTRS;
 import com.jcraft.jsch.SftpException;
-import org.elasticsearch.common.io.Streams;
 
 /**
  *
@@ -45,13 +56,13 @@ public class SshBlobContainer extends AbstractBlobContainer {
 
     protected final SshBlobStore blobStore;
 
+    /**
+     * The directory is created by the first write to it.
+     */
     public SshBlobContainer(final SshBlobStore blobStore,
-        final BlobPath blobPath) throws IOException, JSchException,
-        SftpException {
+        final BlobPath blobPath) {
         super(blobPath);
         this.blobStore = blobStore;
-
-        blobStore.getClient().mkdirs(blobPath);
     }
 
     @Override
@@ -63,35 +74,109 @@ public class SshBlobContainer extends AbstractBlobContainer {
     public Map<String, BlobMetaData> listBlobsByPrefix(
         String blobNamePrefix) throws IOException {
         try {
-            final Vector<LsEntry> entries = blobStore.getClient().ls(path());
-            if (entries.isEmpty()) {
+            final String namePrefix = blobNamePrefix == null ? ""
+                : blobNamePrefix;
+            final SshManifest manifest = blobStore.getManifest();
+            if (manifest != null) {
+                final MapBuilder<String, BlobMetaData> builder = MapBuilder
+                    .newMapBuilder();
+                for (final Map.Entry<String, Long> entry : manifest.list(path()).entrySet()) {
+                    if (entry.getKey().startsWith(namePrefix)) {
+                        builder.put(entry.getKey(), new PlainBlobMetaData(
+                            entry.getKey(), entry.getValue()));
+                    }
+                }
+                putSpooledBlobs(builder, namePrefix);
+                return builder.immutableMap();
+            }
+
+            final JSchClient client = blobStore.getClient();
+            if (client.isExecAccelerated()) {
+                final MapBuilder<String, BlobMetaData> builder = MapBuilder
+                    .newMapBuilder();
+                for (final RemoteFile file : client.listFiles(path(), false)) {
+                    if (file.getName().startsWith(namePrefix)
+                        && !file.getName().startsWith(".")) {
+                        builder.put(file.getName(), new PlainBlobMetaData(
+                            file.getName(), file.getSize()));
+                    }
+                }
+                putSpooledBlobs(builder, namePrefix);
+                return builder.immutableMap();
+            }
+
+            Vector<LsEntry> entries;
+            try {
+                entries = client.ls(path());
+            } catch (final SftpException e) {
+                if (e.id != ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+                    throw e;
+                }
+                entries = new Vector<>();
+            }
+            if (entries.isEmpty() && blobStore.getSpool() == null) {
                 return new HashMap<>();
             }
 
-            final String namePrefix = blobNamePrefix == null ? ""
-                : blobNamePrefix;
             final MapBuilder<String, BlobMetaData> builder = MapBuilder
                 .newMapBuilder();
             for (final LsEntry entry : entries) {
                 if (entry.getAttrs().isReg()
-                    && entry.getFilename().startsWith(namePrefix)) {
+                    && entry.getFilename().startsWith(namePrefix)
+                    && !entry.getFilename().startsWith(".")) {
                     builder.put(entry.getFilename(), new PlainBlobMetaData(
                         entry.getFilename(), entry.getAttrs().getSize()));
                 }
             }
+            putSpooledBlobs(builder, namePrefix);
             return builder.immutableMap();
         } catch (Exception e) {
             throw new IOException("Failed to load files in " + path().buildAsString("/"), e);
         }
     }
 
+    private void putSpooledBlobs(final MapBuilder<String, BlobMetaData> builder,
+        final String namePrefix) {
+        final SshSpool spool = blobStore.getSpool();
+        if (spool == null) {
+            return;
+        }
+        for (final Map.Entry<String, Long> entry : spool.list(path()).entrySet()) {
+            if (entry.getKey().startsWith(namePrefix)) {
+                builder.put(entry.getKey(), new PlainBlobMetaData(entry.getKey(),
+                    entry.getValue()));
+            }
+        }
+    }
+
     @Override
     public void move(String sourceBlobName, String targetBlobName) throws IOException {
         final BlobPath sourcePath = path().add(sourceBlobName);
         final BlobPath targetPath = path().add(targetBlobName);
         try {
+            final SshSpool spool = blobStore.getSpool();
+            if (spool != null) {
+                // a blob written with writeAtomic is renamed before it is uploaded
+                if (spool.move(sourcePath, targetPath)) {
+                    return;
+                }
+                spool.cancel(targetPath);
+            }
             JSchClient client = blobStore.getClient();
-            client.move(sourcePath.buildAsString("/"), targetPath.buildAsString("/"));
+            client.move(sourcePath, targetPath);
+            final SshManifest manifest = blobStore.getManifest();
+            if (manifest != null) {
+                manifest.moved(path(), sourceBlobName, targetBlobName,
+                    client.stat(targetPath).getSize());
+            }
+            if (blobStore.isVerifyChecksum()) {
+                try {
+                    client.move(path().add(JSchClient.CHECKSUM_DIR).add(sourceBlobName),
+                        path().add(JSchClient.CHECKSUM_DIR).add(targetBlobName));
+                } catch (SftpException e) {
+                    // no stored checksum
+                }
+            }
         } catch (Exception e) {
             throw new IOException(e);
         }
@@ -100,17 +185,81 @@ public class SshBlobContainer extends AbstractBlobContainer {
     @Override
     public void deleteBlob(final String blobName) throws IOException {
         final BlobPath path = path().add(blobName);
+        final SshSpool spool = blobStore.getSpool();
+        if (spool != null && spool.cancel(path) && !blobExists(blobName)) {
+            return;
+        }
         try {
             JSchClient client = blobStore.getClient();
             client.rm(path);
+            final SshManifest manifest = blobStore.getManifest();
+            if (manifest != null) {
+                manifest.removed(path(), blobName);
+            }
+            if (blobStore.isVerifyChecksum()) {
+                try {
+                    client.rm(path().add(JSchClient.CHECKSUM_DIR).add(blobName));
+                } catch (SftpException e) {
+                    // no stored checksum
+                }
+            }
         } catch (Exception e) {
             throw new IOException(e);
         }
     }
 
+    /**
+     * Remove the blobs and their stored checksums through the asynchronous
+     * client, which sends them in batches. Blobs that do not exist are ignored.
+     */
+    @Override
+    public void deleteBlobs(final Collection<String> blobNames) throws IOException {
+        final JSchAsyncClient client = blobStore.getClient().getAsyncClient();
+        final SshSpool spool = blobStore.getSpool();
+        final Map<String, PlainActionFuture<Void>> futures = new LinkedHashMap<>();
+        for (final String blobName : blobNames) {
+            final BlobPath path = path().add(blobName);
+            if (spool != null) {
+                spool.cancel(path);
+            }
+            final PlainActionFuture<Void> future = PlainActionFuture.newFuture();
+            client.rm(path, future);
+            futures.put(blobName, future);
+        }
+
+        final SshManifest manifest = blobStore.getManifest();
+        Throwable failure = null;
+        try {
+            for (final Map.Entry<String, PlainActionFuture<Void>> entry : futures.entrySet()) {
+                try {
+                    entry.getValue().get();
+                    if (manifest != null) {
+                        manifest.removed(path(), entry.getKey());
+                    }
+                } catch (final ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while deleting blobs in "
+                + path().buildAsString("/"));
+        }
+        if (failure != null) {
+            throw new IOException("Failed to delete blobs in " + path().buildAsString("/"),
+                failure);
+        }
+    }
+
     @Override
     public boolean blobExists(final String blobName) {
         final BlobPath path = path().add(blobName);
+        final SshSpool spool = blobStore.getSpool();
+        if (spool != null && spool.contains(path)) {
+            return true;
+        }
         try {
             JSchClient client = blobStore.getClient();
             final Vector<LsEntry> entries = client.ls(path);
@@ -123,8 +272,37 @@ public class SshBlobContainer extends AbstractBlobContainer {
     @Override
     public InputStream readBlob(String blobName) throws IOException {
         final BlobPath path = path().add(blobName);
+        final SshSpool spool = blobStore.getSpool();
+        if (spool != null) {
+            final InputStream spooled = spool.open(path);
+            if (spooled != null) {
+                return spooled;
+            }
+        }
+        final SshPrefetcher prefetcher = blobStore.getPrefetcher();
+        if (prefetcher != null) {
+            final InputStream prefetched = prefetcher.take(path);
+            prefetcher.onRead(this, blobName);
+            if (prefetched != null) {
+                return prefetched;
+            }
+        }
         try {
             JSchClient client = blobStore.getClient();
+            final SshBlobCache cache = blobStore.getBlobCache();
+            if (cache != null && SshBlobCache.isCacheable(blobName)) {
+                final SftpATTRS attrs = client.stat(path);
+                if (cache.accepts(attrs.getSize())) {
+                    final String key = SshBlobCache.key(path, attrs.getSize(), attrs.getMTime());
+                    final InputStream cached = cache.get(key);
+                    if (cached != null) {
+                        return cached;
+                    }
+                    try (InputStream is = client.get(path)) {
+                        return cache.put(key, is);
+                    }
+                }
+            }
             return client.get(path);
         } catch (Exception e) {
             throw new IOException("Failed to load " + path.buildAsString("/"), e);
@@ -134,18 +312,98 @@ public class SshBlobContainer extends AbstractBlobContainer {
     @Override
     public void writeBlob(String blobName, InputStream inputStream, long blobSize)
         throws IOException {
-        OutputStream stream = createOutput(blobName);
-        Streams.copy(inputStream, stream);
+        if (spool(blobName, inputStream, blobSize)) {
+            return;
+        }
+        writeBlobDirect(blobName, inputStream, blobSize);
+    }
+
+    /**
+     * Write a blob to the SSH server, bypassing the spool.
+     */
+    void writeBlobDirect(String blobName, InputStream inputStream, long blobSize)
+        throws IOException {
+        final SshBulkWriter bulkWriter = blobStore.getBulkWriter();
+        if (bulkWriter != null && bulkWriter.accepts(path().add(blobName), blobSize)) {
+            final byte[] bytes = new byte[(int) blobSize];
+            try (DataInputStream in = new DataInputStream(inputStream)) {
+                in.readFully(bytes);
+            }
+            bulkWriter.write(path().add(blobName), bytes);
+            blobWritten(blobName, blobSize);
+            return;
+        }
+        final BlobPath path = path().add(blobName);
+        final MessageDigest digest = blobStore.isVerifyChecksum() ? Checksums.sha256() : null;
+        try (InputStream in = digest != null ? new DigestInputStream(inputStream, digest)
+            : inputStream) {
+            JSchClient client = blobStore.getClient();
+            client.put(path, in);
+            if (digest != null) {
+                client.verifyChecksums(
+                    Collections.singletonMap(path, Checksums.toHex(digest.digest())));
+            }
+        } catch (Exception e) {
+            throw new IOException("Failed to write " + path.buildAsString("/"), e);
+        }
+        blobWritten(blobName, blobSize);
     }
 
     @Override
     public void writeBlob(String blobName, BytesReference bytes) throws IOException {
+        if (spool(blobName, bytes.streamInput(), bytes.length())) {
+            return;
+        }
+        final SshBulkWriter bulkWriter = blobStore.getBulkWriter();
+        if (bulkWriter != null && bulkWriter.accepts(path().add(blobName), bytes.length())) {
+            bulkWriter.write(path().add(blobName), bytes.toBytes());
+            blobWritten(blobName, bytes.length());
+            return;
+        }
+        final MessageDigest digest = blobStore.isVerifyChecksum() ? Checksums.sha256() : null;
         try (OutputStream stream = createOutput(blobName)) {
-            bytes.writeTo(stream);
+            bytes.writeTo(digest != null ? new DigestOutputStream(stream, digest) : stream);
+        }
+        if (digest != null) {
+            final BlobPath path = path().add(blobName);
+            try {
+                blobStore.getClient().verifyChecksums(
+                    Collections.singletonMap(path, Checksums.toHex(digest.digest())));
+            } catch (Exception e) {
+                throw new IOException("Failed to verify " + path.buildAsString("/"), e);
+            }
         }
+        blobWritten(blobName, bytes.length());
+    }
 
+    private void blobWritten(final String blobName, final long blobSize) {
+        final SshManifest manifest = blobStore.getManifest();
+        if (manifest != null) {
+            manifest.added(path(), blobName, blobSize);
+        }
     }
 
+    /**
+     * Hand a blob to the spool. Blobs at the repository root commit a
+     * snapshot, so they wait until all spooled blobs are uploaded.
+     * @return true if the blob was spooled
+     */
+    private boolean spool(final String blobName, final InputStream inputStream,
+        final long blobSize) throws IOException {
+        final SshSpool spool = blobStore.getSpool();
+        if (spool == null) {
+            return false;
+        }
+        if (path().toArray().length == 0) {
+            spool.drain();
+            return false;
+        }
+        if (!spool.accepts(blobSize)) {
+            return false;
+        }
+        spool.write(path().add(blobName), inputStream, blobSize);
+        return true;
+    }
 
     private OutputStream createOutput(final String blobName) throws IOException {
         final BlobPath path = path().add(blobName);
@@ -20,16 +20,16 @@
 package org.codelibs.elasticsearch.repository.ssh.blobstore;
 
 import java.io.IOException;
+import java.io.InputStream;
 
+import org.codelibs.elasticsearch.repository.ssh.utils.SshHostUnavailableException;
 import org.elasticsearch.common.blobstore.BlobContainer;
 import org.elasticsearch.common.blobstore.BlobPath;
 import org.elasticsearch.common.blobstore.BlobStore;
 import org.elasticsearch.common.blobstore.BlobStoreException;
 import org.elasticsearch.common.component.AbstractComponent;
 import org.elasticsearch.common.settings.Settings;
-
-import com.jcraft.jsch.JSchException;
-import com.jcraft.jsch.SftpException;
+import org.elasticsearch.repositories.RepositoryException;
 
 /**
  * SSH(SFTP) based BlobStore implementation.
@@ -38,11 +38,52 @@ import com.jcraft.jsch.SftpException;
  */
 public class SshBlobStore extends AbstractComponent implements BlobStore {
 
+    private String repositoryName;
+
     private JSchClient jSchClient;
 
-    public SshBlobStore(final Settings settings, final JSchClient jSchClient) {
+    private SshBlobCache blobCache;
+
+    private SshBulkWriter bulkWriter;
+
+    private boolean verifyChecksum;
+
+    private SshSpool spool;
+
+    private SshPrefetcher prefetcher;
+
+    private SshManifest manifest;
+
+    public SshBlobStore(final Settings settings, final String repositoryName,
+        final JSchClient jSchClient, final SshBlobCache blobCache,
+        final SshBulkWriter bulkWriter, final boolean verifyChecksum,
+        final SshSpool spool, final SshPrefetcher prefetcher, final SshManifest manifest)
+        throws IOException {
         super(settings);
+        this.repositoryName = repositoryName;
         this.jSchClient = jSchClient;
+        this.blobCache = blobCache;
+        this.bulkWriter = bulkWriter;
+        this.verifyChecksum = verifyChecksum;
+        this.spool = spool;
+        this.prefetcher = prefetcher;
+        this.manifest = manifest;
+
+        if (spool != null) {
+            spool.start(new SshSpool.Uploader() {
+                @Override
+                public void upload(final BlobPath blobPath, final InputStream inputStream,
+                    final long blobSize) throws IOException {
+                    final String[] elements = blobPath.toArray();
+                    BlobPath parent = BlobPath.cleanPath();
+                    for (int i = 0; i < elements.length - 1; i++) {
+                        parent = parent.add(elements[i]);
+                    }
+                    new SshBlobContainer(SshBlobStore.this, parent).writeBlobDirect(
+                        elements[elements.length - 1], inputStream, blobSize);
+                }
+            });
+        }
     }
 
     @Override
@@ -52,18 +93,18 @@ public class SshBlobStore extends AbstractComponent implements BlobStore {
 
     @Override
     public BlobContainer blobContainer(final BlobPath blobPath) {
-        try {
-            return new SshBlobContainer(this, blobPath);
-        } catch (SftpException | JSchException | IOException e) {
-            throw new BlobStoreException("Failed to create BlobContainer: "
-                + blobPath, e);
-        }
+        return new SshBlobContainer(this, blobPath);
     }
 
     @Override
     public void delete(final BlobPath blobPath) {
         try {
+            if (spool != null) {
+                spool.cancelAll(blobPath);
+            }
             jSchClient.rmdir(blobPath);
+        } catch (SshHostUnavailableException e) {
+            throw new RepositoryException(repositoryName, e.getMessage(), e);
         } catch (Exception e) {
             throw new BlobStoreException("Failed to delete "
                 + blobPath.buildAsString("/"), e);
@@ -72,6 +113,12 @@ public class SshBlobStore extends AbstractComponent implements BlobStore {
 
     @Override
     public void close() {
+        if (prefetcher != null) {
+            prefetcher.close();
+        }
+        if (spool != null) {
+            spool.close();
+        }
         jSchClient.close();
     }
 
@@ -79,4 +126,61 @@ public class SshBlobStore extends AbstractComponent implements BlobStore {
         return jSchClient;
     }
 
+    /**
+     * @return a local cache for metadata blobs, or null if disabled
+     */
+    public SshBlobCache getBlobCache() {
+        return blobCache;
+    }
+
+    /**
+     * @return a writer for batched small blobs, or null if disabled
+     */
+    public SshBulkWriter getBulkWriter() {
+        return bulkWriter;
+    }
+
+    /**
+     * @return a local write-behind spool, or null if disabled
+     */
+    public SshSpool getSpool() {
+        return spool;
+    }
+
+    /**
+     * @return a read-ahead for restore, or null if disabled
+     */
+    public SshPrefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    /**
+     * @return a blob list kept on the server per container, or null if disabled
+     */
+    public SshManifest getManifest() {
+        return manifest;
+    }
+
+    /**
+     * @return true if written blobs are confirmed by a SHA-256 checksum on the server
+     */
+    public boolean isVerifyChecksum() {
+        return verifyChecksum;
+    }
+
+    /**
+     * Check stored checksums of all blobs under the path on the server.
+     * @param blobPath
+     * @param parallelism
+     * @return
+     */
+    public ChecksumReport verifyChecksums(final BlobPath blobPath, final int parallelism) {
+        try {
+            return jSchClient.verifyStoredChecksums(blobPath, parallelism);
+        } catch (Exception e) {
+            throw new BlobStoreException("Failed to verify "
+                + blobPath.buildAsString("/"), e);
+        }
+    }
+
 }
@@ -0,0 +1,161 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.codelibs.elasticsearch.repository.ssh.blobstore;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.codelibs.elasticsearch.repository.ssh.utils.Checksums;
+import org.elasticsearch.common.blobstore.BlobPath;
+
+import com.jcraft.jsch.JSchException;
+
+/**
+ * Groups small blob writes from concurrent callers into one tar stream.
+ * The first writer of a batch waits for the linger time, or until the
+ * batch is full, and uploads it. Every writer returns only after its
+ * batch is extracted on the server, so writes stay durable.
+ */
+public class SshBulkWriter {
+
+    private final JSchClient client;
+
+    private final long threshold;
+
+    private final int maxFiles;
+
+    private final long lingerMillis;
+
+    private final boolean verifyChecksum;
+
+    private final Object lock = new Object();
+
+    private Batch current;
+
+    public SshBulkWriter(final JSchClient client, final long threshold, final int maxFiles,
+        final long lingerMillis, final boolean verifyChecksum) {
+        this.client = client;
+        this.threshold = threshold;
+        this.maxFiles = maxFiles;
+        this.lingerMillis = lingerMillis;
+        this.verifyChecksum = verifyChecksum;
+    }
+
+    /**
+     * Returns true if the blob should be written in a batch. A path too
+     * long for a tar header is left to SFTP, so it cannot fail a batch.
+     * @param blobPath
+     * @param length
+     * @return
+     */
+    public boolean accepts(final BlobPath blobPath, final long length) {
+        if (length > threshold || !TarWriter.fits(blobPath.buildAsString("/"))) {
+            return false;
+        }
+        try {
+            return client.isExecAvailable();
+        } catch (final JSchException e) {
+            // written through SFTP; the next write probes the server again
+            return false;
+        }
+    }
+
+    public void write(final BlobPath blobPath, final byte[] bytes) throws IOException {
+        final String checksum = verifyChecksum
+            ? Checksums.toHex(Checksums.sha256().digest(bytes)) : null;
+        final Batch batch;
+        final boolean leader;
+        synchronized (lock) {
+            leader = current == null;
+            if (leader) {
+                current = new Batch();
+            }
+            batch = current;
+            batch.blobs.put(blobPath, bytes);
+            if (checksum != null) {
+                batch.checksums.put(blobPath, checksum);
+            }
+            if (batch.blobs.size() >= maxFiles) {
+                current = null;
+                lock.notifyAll();
+            }
+        }
+
+        if (leader) {
+            try {
+                synchronized (lock) {
+                    final long deadline = System.currentTimeMillis() + lingerMillis;
+                    long wait = lingerMillis;
+                    while (current == batch && wait > 0) {
+                        lock.wait(wait);
+                        wait = deadline - System.currentTimeMillis();
+                    }
+                    if (current == batch) {
+                        current = null;
+                    }
+                }
+                client.putAll(batch.blobs);
+                if (!batch.checksums.isEmpty()) {
+                    client.verifyChecksums(batch.checksums);
+                }
+                batch.complete(null);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                batch.complete(e);
+            } catch (final Exception e) {
+                batch.complete(e);
+            }
+        }
+
+        batch.await();
+    }
+
+    private static class Batch {
+        private final Map<BlobPath, byte[]> blobs = new LinkedHashMap<>();
+
+        private final Map<BlobPath, String> checksums = new LinkedHashMap<>();
+
+        private boolean done;
+
+        private Exception failure;
+
+        synchronized void complete(final Exception e) {
+            failure = e;
+            done = true;
+            notifyAll();
+        }
+
+        synchronized void await() throws IOException {
+            try {
+                while (!done) {
+                    wait();
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while writing blobs.");
+            }
+            if (failure != null) {
+                throw new IOException("Failed to write blobs in a batch.", failure);
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.codelibs.elasticsearch.repository.ssh.blobstore;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.elasticsearch.common.blobstore.BlobPath;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+
+/**
+ * Append-only list of blobs kept in each container on the server, so a
+ * listing reads one small file instead of the whole directory.
+ * A manifest is rebuilt from a full listing when it is missing, cannot
+ * be parsed, or the directory was modified after it, and is compacted
+ * in place when most of its lines are stale.
+ */
+public class SshManifest {
+
+    private static final ESLogger logger = Loggers.getLogger(SshManifest.class);
+
+    public static final String MANIFEST_NAME = ".manifest";
+
+    private static final String HEADER = "#manifest";
+
+    private static final int MIN_COMPACT_LINES = 1000;
+
+    private final JSchClient client;
+
+    private final Object[] locks = new Object[64];
+
+    public SshManifest(final JSchClient client) {
+        this.client = client;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * @param containerPath
+     * @return sizes of blobs in the container
+     */
+    public Map<String, Long> list(final BlobPath containerPath)
+        throws SftpException, JSchException, IOException {
+        final BlobPath manifestPath = containerPath.add(MANIFEST_NAME);
+        synchronized (lock(containerPath)) {
+            final SftpATTRS dirAttrs;
+            try {
+                dirAttrs = client.stat(containerPath);
+            } catch (final SftpException e) {
+                if (e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+                    // created on the first write
+                    return new LinkedHashMap<>();
+                }
+                throw e;
+            }
+            SftpATTRS manifestAttrs = null;
+            try {
+                manifestAttrs = client.stat(manifestPath);
+            } catch (final SftpException e) {
+                if (e.id != ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+                    throw e;
+                }
+            }
+
+            // mtime has a resolution of seconds, so only a later change is stale
+            if (manifestAttrs != null && manifestAttrs.getMTime() >= dirAttrs.getMTime()) {
+                final Map<String, Long> blobs = new LinkedHashMap<>();
+                final int lines = read(manifestPath, blobs);
+                if (lines >= 0) {
+                    if (needsCompaction(lines, blobs.size())) {
+                        write(manifestPath, blobs);
+                    }
+                    return blobs;
+                }
+                logger.warn("Rebuilding unreadable manifest {}", manifestPath.buildAsString("/"));
+            }
+
+            final Map<String, Long> blobs = new LinkedHashMap<>();
+            for (final RemoteFile file : client.listFiles(containerPath, false)) {
+                if (!file.getName().startsWith(".")) {
+                    blobs.put(file.getName(), file.getSize());
+                }
+            }
+            write(manifestPath, blobs);
+            return blobs;
+        }
+    }
+
+    public void added(final BlobPath containerPath, final String blobName, final long size) {
+        append(containerPath, "+\t" + blobName + "\t" + size + "\n");
+    }
+
+    public void removed(final BlobPath containerPath, final String blobName) {
+        append(containerPath, "-\t" + blobName + "\n");
+    }
+
+    public void moved(final BlobPath containerPath, final String sourceBlobName,
+        final String targetBlobName, final long size) {
+        append(containerPath, "-\t" + sourceBlobName + "\n+\t" + targetBlobName + "\t" + size
+            + "\n");
+    }
+
+    private void append(final BlobPath containerPath, final String lines) {
+        final BlobPath manifestPath = containerPath.add(MANIFEST_NAME);
+        synchronized (lock(containerPath)) {
+            try {
+                // an append to a missing manifest has no header and is rebuilt on read
+                client.append(manifestPath, lines.getBytes(StandardCharsets.UTF_8));
+            } catch (final Exception e) {
+                logger.warn("Failed to update manifest {}", e, manifestPath.buildAsString("/"));
+                try {
+                    client.rm(manifestPath);
+                } catch (final Exception e1) {
+                    // rebuilt as stale on the next listing
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of lines, or -1 if the manifest cannot be parsed
+     */
+    private int read(final BlobPath manifestPath, final Map<String, Long> blobs)
+        throws SftpException, JSchException, IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+            client.get(manifestPath), StandardCharsets.UTF_8))) {
+            return parse(reader, blobs);
+        }
+    }
+
+    /**
+     * Replay the lines of a manifest into the blobs.
+     * @return the number of lines, or -1 if the manifest cannot be parsed
+     */
+    static int parse(final BufferedReader reader, final Map<String, Long> blobs)
+        throws IOException {
+        if (!HEADER.equals(reader.readLine())) {
+            return -1;
+        }
+        int count = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            final String[] values = line.split("\t");
+            if (values.length == 3 && "+".equals(values[0])) {
+                try {
+                    blobs.put(values[1], Long.parseLong(values[2]));
+                } catch (final NumberFormatException e) {
+                    return -1;
+                }
+            } else if (values.length == 2 && "-".equals(values[0])) {
+                blobs.remove(values[1]);
+            } else {
+                return -1;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns true if most lines of a long manifest are stale.
+     */
+    static boolean needsCompaction(final int lines, final int blobs) {
+        return lines > MIN_COMPACT_LINES && lines > blobs * 2;
+    }
+
+    /**
+     * @return a manifest with one line per blob
+     */
+    static String format(final Map<String, Long> blobs) {
+        final StringBuilder buf = new StringBuilder();
+        buf.append(HEADER).append('\n');
+        for (final Map.Entry<String, Long> entry : blobs.entrySet()) {
+            buf.append("+\t").append(entry.getKey()).append('\t').append(entry.getValue())
+                .append('\n');
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Overwrite the manifest in place, which leaves the directory mtime as is.
+     */
+    private void write(final BlobPath manifestPath, final Map<String, Long> blobs)
+        throws SftpException, JSchException {
+        final InputStream in = new ByteArrayInputStream(
+            format(blobs).getBytes(StandardCharsets.UTF_8));
+        client.put(manifestPath, in);
+    }
+
+    private Object lock(final BlobPath containerPath) {
+        final int hash = containerPath.buildAsString("/").hashCode();
+        return locks[(hash & Integer.MAX_VALUE) % locks.length];
+    }
+}
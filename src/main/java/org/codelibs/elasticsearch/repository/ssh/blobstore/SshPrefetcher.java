@@ -0,0 +1,375 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.codelibs.elasticsearch.repository.ssh.blobstore;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.common.ParseFieldMatcher;
+import org.elasticsearch.common.blobstore.BlobPath;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.index.snapshots.blobstore.BlobStoreIndexShardSnapshot;
+import org.elasticsearch.index.snapshots.blobstore.BlobStoreIndexShardSnapshot.FileInfo;
+import org.elasticsearch.repositories.blobstore.ChecksumBlobStoreFormat;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Read-ahead for shard restore. When the first data blob of a shard
+ * container is read, the file list of the shard snapshot read just
+ * before it is loaded, and the blobs that were not read yet are
+ * downloaded into memory in parallel, up to a memory budget.
+ * Buffered blobs that are not read before they expire are dropped.
+ */
+public class SshPrefetcher {
+
+    private static final ESLogger logger = Loggers.getLogger(SshPrefetcher.class);
+
+    private static final String DATA_BLOB_PREFIX = "__";
+
+    private static final String SNAPSHOT_PREFIX = "snap-";
+
+    private static final String SNAPSHOT_SUFFIX = ".dat";
+
+    private static final ChecksumBlobStoreFormat<BlobStoreIndexShardSnapshot> SHARD_SNAPSHOT_FORMAT =
+        new ChecksumBlobStoreFormat<>("snapshot", SNAPSHOT_PREFIX + "%s" + SNAPSHOT_SUFFIX,
+            BlobStoreIndexShardSnapshot.PROTO, ParseFieldMatcher.STRICT, false);
+
+    private final JSchClient client;
+
+    private final int count;
+
+    private final long maxSize;
+
+    private final long expireMillis;
+
+    private final ExecutorService executor;
+
+    private final ScheduledFuture<?> cleaner;
+
+    private final Object lock = new Object();
+
+    private final Map<String, Container> containers = new HashMap<>();
+
+    private final Map<String, Blob> blobs = new HashMap<>();
+
+    private long used;
+
+    private boolean closed;
+
+    public SshPrefetcher(final Settings settings, final JSchClient client,
+        final ThreadPool threadPool, final int count, final long maxSize,
+        final TimeValue expire) {
+        this.client = client;
+        this.count = count;
+        this.maxSize = maxSize;
+        this.expireMillis = expire.millis();
+        this.executor = new ThreadPoolExecutor(count, count, 0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            EsExecutors.daemonThreadFactory(settings, "ssh_prefetch"));
+        this.cleaner = threadPool.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                expire();
+            }
+        }, expire);
+    }
+
+    /**
+     * Take a prefetched blob. If the blob is being downloaded, this waits for it.
+     * @param blobPath
+     * @return a stream, or null if the blob was not prefetched
+     */
+    public InputStream take(final BlobPath blobPath) throws IOException {
+        final String path = blobPath.buildAsString("/");
+        synchronized (lock) {
+            final Blob blob = blobs.get(path);
+            if (blob == null) {
+                return null;
+            }
+            try {
+                while (blob.loading) {
+                    lock.wait();
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while prefetching " + path);
+            }
+            if (blobs.remove(path) == blob) {
+                used -= blob.size;
+                lock.notifyAll();
+            }
+            if (blob.bytes == null) {
+                return null;
+            }
+            return new ByteArrayInputStream(blob.bytes);
+        }
+    }
+
+    /**
+     * Record a read, and start prefetching blobs of the same shard.
+     * @param container
+     * @param blobName
+     */
+    public void onRead(final SshBlobContainer container, final String blobName) {
+        final String containerPath = container.path().buildAsString("/");
+        synchronized (lock) {
+            Container state = containers.get(containerPath);
+            if (blobName.startsWith(SNAPSHOT_PREFIX) && blobName.endsWith(SNAPSHOT_SUFFIX)) {
+                if (state == null || !blobName.equals(state.snapshotBlob)) {
+                    state = new Container(blobName);
+                    containers.put(containerPath, state);
+                }
+                state.accessed = System.currentTimeMillis();
+                return;
+            }
+            if (state == null || !blobName.startsWith(DATA_BLOB_PREFIX)) {
+                return;
+            }
+            state.accessed = System.currentTimeMillis();
+            final String path = container.path().add(blobName).buildAsString("/");
+            state.read.add(path);
+            state.remaining.remove(path);
+            if (!state.loaded) {
+                state.loaded = true;
+                submit(new LoadTask(container, state));
+                return;
+            }
+            fill(state);
+        }
+    }
+
+    public void close() {
+        if (cleaner != null) {
+            cleaner.cancel(false);
+        }
+        executor.shutdownNow();
+        synchronized (lock) {
+            closed = true;
+            containers.clear();
+            blobs.clear();
+            used = 0;
+        }
+    }
+
+    /**
+     * Start downloads for the next blobs of the container.
+     * Called with the lock held.
+     */
+    private void fill(final Container state) {
+        if (closed) {
+            return;
+        }
+        final Iterator<Map.Entry<String, Long>> it = state.remaining.entrySet().iterator();
+        while (state.inFlight < count && it.hasNext()) {
+            final Map.Entry<String, Long> entry = it.next();
+            if (entry.getValue() > maxSize - used) {
+                if (entry.getValue() > maxSize) {
+                    // never fits, leave it to the restore
+                    it.remove();
+                    continue;
+                }
+                return;
+            }
+            it.remove();
+            final Blob blob = new Blob(state, entry.getValue());
+            blobs.put(entry.getKey(), blob);
+            used += blob.size;
+            state.inFlight++;
+            fetch(entry.getKey(), blob);
+        }
+    }
+
+    private void fetch(final String path, final Blob blob) {
+        BlobPath blobPath = BlobPath.cleanPath();
+        for (final String element : path.split("/")) {
+            blobPath = blobPath.add(element);
+        }
+        get(blobPath, new ActionListener<byte[]>() {
+            @Override
+            public void onResponse(final byte[] bytes) {
+                fetched(blob, bytes);
+            }
+
+            @Override
+            public void onFailure(final Throwable e) {
+                logger.debug("Failed to prefetch {}", e, path);
+                fetched(blob, null);
+            }
+        });
+    }
+
+    /**
+     * Download a blob on the I/O threads of the client, so blobs in flight
+     * do not hold prefetch threads.
+     */
+    void get(final BlobPath blobPath, final ActionListener<byte[]> listener) {
+        client.getAsyncClient().get(blobPath, listener);
+    }
+
+    /**
+     * @param container
+     * @param snapshotName
+     * @return sizes of the data blobs listed in the shard snapshot, by path
+     */
+    Map<String, Long> readParts(final SshBlobContainer container, final String snapshotName)
+        throws IOException {
+        final Map<String, Long> parts = new LinkedHashMap<>();
+        final BlobStoreIndexShardSnapshot snapshot =
+            SHARD_SNAPSHOT_FORMAT.read(container, snapshotName);
+        for (final FileInfo fileInfo : snapshot.indexFiles()) {
+            for (int i = 0; i < fileInfo.numberOfParts(); i++) {
+                parts.put(container.path().add(fileInfo.partName(i)).buildAsString("/"),
+                    fileInfo.partBytes(i));
+            }
+        }
+        return parts;
+    }
+
+    private void fetched(final Blob blob, final byte[] bytes) {
+        synchronized (lock) {
+            blob.bytes = bytes;
+            blob.loading = false;
+            blob.loaded = System.currentTimeMillis();
+            blob.container.inFlight--;
+            lock.notifyAll();
+            fill(blob.container);
+        }
+    }
+
+    private void submit(final Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (final RejectedExecutionException e) {
+            // closed
+        }
+    }
+
+    void expire() {
+        final long now = System.currentTimeMillis();
+        synchronized (lock) {
+            final Iterator<Blob> blobIt = blobs.values().iterator();
+            while (blobIt.hasNext()) {
+                final Blob blob = blobIt.next();
+                if (!blob.loading && now - blob.loaded > expireMillis) {
+                    used -= blob.size;
+                    blobIt.remove();
+                }
+            }
+            final Iterator<Container> containerIt = containers.values().iterator();
+            while (containerIt.hasNext()) {
+                final Container state = containerIt.next();
+                if (now - state.accessed > expireMillis) {
+                    state.remaining.clear();
+                    state.read.clear();
+                    containerIt.remove();
+                }
+            }
+            lock.notifyAll();
+        }
+    }
+
+    private static class Container {
+        private final String snapshotBlob;
+
+        private final Map<String, Long> remaining = new LinkedHashMap<>();
+
+        // blobs the restore has read, which may be before the file list is loaded
+        private final Set<String> read = new HashSet<>();
+
+        private boolean loaded;
+
+        private int inFlight;
+
+        private long accessed;
+
+        Container(final String snapshotBlob) {
+            this.snapshotBlob = snapshotBlob;
+        }
+    }
+
+    private static class Blob {
+        private final Container container;
+
+        private final long size;
+
+        private boolean loading = true;
+
+        private long loaded;
+
+        private byte[] bytes;
+
+        Blob(final Container container, final long size) {
+            this.container = container;
+            this.size = size;
+        }
+    }
+
+    private class LoadTask implements Runnable {
+        private final SshBlobContainer container;
+
+        private final Container state;
+
+        LoadTask(final SshBlobContainer container, final Container state) {
+            this.container = container;
+            this.state = state;
+        }
+
+        @Override
+        public void run() {
+            final String snapshotName = state.snapshotBlob.substring(SNAPSHOT_PREFIX.length(),
+                state.snapshotBlob.length() - SNAPSHOT_SUFFIX.length());
+            final Map<String, Long> parts;
+            try {
+                parts = readParts(container, snapshotName);
+            } catch (final Exception e) {
+                logger.debug("Failed to load {} for prefetching", e, state.snapshotBlob);
+                return;
+            }
+            synchronized (lock) {
+                for (final Map.Entry<String, Long> entry : parts.entrySet()) {
+                    if (!blobs.containsKey(entry.getKey())
+                        && !state.read.contains(entry.getKey())) {
+                        state.remaining.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                fill(state);
+            }
+        }
+    }
+}
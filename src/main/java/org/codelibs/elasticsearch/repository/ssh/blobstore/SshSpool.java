@@ -0,0 +1,680 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.codelibs.elasticsearch.repository.ssh.blobstore;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.util.IOUtils;
+import org.elasticsearch.common.blobstore.BlobPath;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+
+/**
+ * Write-behind spool. Blobs are first written to a bounded local directory
+ * and uploaded by background threads. Each spooled blob is journaled as a
+ * data file plus a file holding its remote path, so pending uploads are
+ * resumed after a restart.
+ * Metadata blobs of a container are uploaded only after the blobs spooled
+ * before them in the same container. Failed uploads are retried in the
+ * background with a growing delay until they succeed or are cancelled.
+ */
+public class SshSpool {
+
+    private static final ESLogger logger = Loggers.getLogger(SshSpool.class);
+
+    private static final String BLOB_SUFFIX = ".blob";
+
+    private static final String PATH_SUFFIX = ".path";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final String DATA_BLOB_PREFIX = "__";
+
+    /**
+     * Failed attempts after which waiters are told about the failure.
+     */
+    private static final int MAX_ATTEMPTS = 3;
+
+    private static final long MAX_RETRY_DELAY = 60000L;
+
+    /**
+     * Uploads a spooled blob to the SSH server.
+     */
+    public interface Uploader {
+        void upload(BlobPath blobPath, InputStream inputStream, long blobSize) throws IOException;
+    }
+
+    private final Path directory;
+
+    private final long maxSize;
+
+    private final long timeoutMillis;
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final Object lock = new Object();
+
+    private final Map<String, Entry> pending = new LinkedHashMap<>();
+
+    private final List<Entry> deferred = new ArrayList<>();
+
+    private long used;
+
+    private Uploader uploader;
+
+    /**
+     * @param settings
+     * @param directory
+     * @param maxSize maximum size of blobs waiting for upload
+     * @param concurrency number of upload threads
+     * @param timeout how long a write waits for space before it fails
+     */
+    public SshSpool(final Settings settings, final Path directory, final long maxSize,
+        final int concurrency, final TimeValue timeout) throws IOException {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.timeoutMillis = timeout.millis();
+        this.executor = new ScheduledThreadPoolExecutor(concurrency,
+            EsExecutors.daemonThreadFactory(settings, "ssh_spool"));
+        this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Start uploading, beginning with blobs left in the journal.
+     * @param uploader
+     */
+    public void start(final Uploader uploader) throws IOException {
+        this.uploader = uploader;
+
+        final Map<Long, Path> journal = new TreeMap<>();
+        final List<Path> orphans = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (final Path file : stream) {
+                final String name = file.getFileName().toString();
+                if (name.endsWith(PATH_SUFFIX)) {
+                    final long seq = sequence(name, PATH_SUFFIX);
+                    if (seq >= 0) {
+                        journal.put(seq, file);
+                    }
+                } else if (!name.endsWith(BLOB_SUFFIX)) {
+                    orphans.add(file);
+                }
+            }
+        }
+        for (final Path file : orphans) {
+            Files.deleteIfExists(file);
+        }
+
+        long seq = 0;
+        for (final Map.Entry<Long, Path> record : journal.entrySet()) {
+            seq = record.getKey();
+            final Path blobFile = directory.resolve(seq + BLOB_SUFFIX);
+            final String path = new String(Files.readAllBytes(record.getValue()),
+                StandardCharsets.UTF_8);
+            final Entry entry = new Entry(seq, path, blobFile, record.getValue(),
+                Files.size(blobFile));
+            synchronized (lock) {
+                used += entry.size;
+                supersede(pending.put(path, entry));
+            }
+            submit(entry);
+        }
+        sequence.set(seq);
+        if (!journal.isEmpty()) {
+            logger.info("Resuming {} spooled uploads in {}", journal.size(), directory);
+        }
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + BLOB_SUFFIX)) {
+            for (final Path file : stream) {
+                final String name = file.getFileName().toString();
+                final long blobSeq = sequence(name, BLOB_SUFFIX);
+                if (blobSeq >= 0 && !journal.containsKey(blobSeq)) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if a blob of the size fits in the spool.
+     * @param length
+     * @return
+     */
+    public boolean accepts(final long length) {
+        return length <= maxSize;
+    }
+
+    /**
+     * Spool a blob. It returns after the blob is durable on local disk.
+     * While the spool is full, this waits for uploads up to the timeout.
+     * @param blobPath
+     * @param inputStream
+     * @param blobSize
+     */
+    public void write(final BlobPath blobPath, final InputStream inputStream, final long blobSize)
+        throws IOException {
+        reserve(blobSize);
+        final long seq = sequence.incrementAndGet();
+        final String path = blobPath.buildAsString("/");
+        final Path blobFile = directory.resolve(seq + BLOB_SUFFIX);
+        final Path pathFile = directory.resolve(seq + PATH_SUFFIX);
+        final long size;
+        try {
+            size = writeDurably(blobFile, inputStream);
+            writeDurably(pathFile, new ByteArrayInputStream(
+                path.getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException | RuntimeException e) {
+            release(blobSize);
+            Files.deleteIfExists(pathFile);
+            Files.deleteIfExists(blobFile);
+            throw e;
+        }
+
+        final Entry entry = new Entry(seq, path, blobFile, pathFile, size);
+        synchronized (lock) {
+            used += size - blobSize;
+            supersede(pending.put(path, entry));
+        }
+        submit(entry);
+    }
+
+    /**
+     * open a blob that is not uploaded yet
+     * @param blobPath
+     * @return a stream, or null if the blob is not in the spool
+     */
+    public InputStream open(final BlobPath blobPath) throws IOException {
+        final Entry entry;
+        synchronized (lock) {
+            entry = pending.get(blobPath.buildAsString("/"));
+        }
+        if (entry == null) {
+            return null;
+        }
+        try {
+            return Files.newInputStream(entry.blobFile);
+        } catch (final NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    public boolean contains(final BlobPath blobPath) {
+        synchronized (lock) {
+            return pending.containsKey(blobPath.buildAsString("/"));
+        }
+    }
+
+    /**
+     * @param containerPath
+     * @return sizes of blobs in the container that are not uploaded yet
+     */
+    public Map<String, Long> list(final BlobPath containerPath) {
+        final String prefix = prefix(containerPath);
+        final Map<String, Long> blobs = new HashMap<>();
+        synchronized (lock) {
+            for (final Entry entry : pending.values()) {
+                if (entry.path.startsWith(prefix) && entry.path.indexOf('/', prefix.length()) < 0) {
+                    blobs.put(entry.path.substring(prefix.length()), entry.size);
+                }
+            }
+        }
+        return blobs;
+    }
+
+    /**
+     * Drop a blob that is not uploaded yet, or wait for its running upload.
+     * @param blobPath
+     * @return true if the blob was only in the spool
+     */
+    public boolean cancel(final BlobPath blobPath) throws IOException {
+        return cancel(blobPath.buildAsString("/"));
+    }
+
+    /**
+     * Drop all blobs under the path that are not uploaded yet.
+     * @param blobPath
+     */
+    public void cancelAll(final BlobPath blobPath) throws IOException {
+        final String prefix = prefix(blobPath);
+        final List<String> paths = new ArrayList<>();
+        synchronized (lock) {
+            for (final String path : pending.keySet()) {
+                if (path.startsWith(prefix)) {
+                    paths.add(path);
+                }
+            }
+        }
+        for (final String path : paths) {
+            cancel(path);
+        }
+    }
+
+    private boolean cancel(final String path) throws IOException {
+        synchronized (lock) {
+            final Entry entry = pending.get(path);
+            if (entry == null) {
+                return false;
+            }
+            if (!entry.uploading) {
+                entry.cancelled = true;
+                pending.remove(path);
+                used -= entry.size;
+                changed();
+                // otherwise its upload task deletes the files
+                if (deferred.remove(entry)) {
+                    deleteFiles(entry);
+                }
+                return true;
+            }
+        }
+        await(path);
+        return false;
+    }
+
+    /**
+     * Rename a blob that is not uploaded yet. It keeps its place in the
+     * upload order and is uploaded under the target name. If the blob is
+     * being uploaded, this waits for the upload.
+     * @param sourcePath
+     * @param targetPath
+     * @return true if the blob was renamed in the spool
+     */
+    public boolean move(final BlobPath sourcePath, final BlobPath targetPath)
+        throws IOException {
+        final String source = sourcePath.buildAsString("/");
+        final String target = targetPath.buildAsString("/");
+        synchronized (lock) {
+            final Entry entry = pending.get(source);
+            if (entry != null && !entry.uploading) {
+                writeDurably(entry.pathFile,
+                    new ByteArrayInputStream(target.getBytes(StandardCharsets.UTF_8)));
+                pending.remove(source);
+                entry.setPath(target);
+                supersede(pending.put(target, entry));
+                changed();
+                return true;
+            }
+        }
+        await(source);
+        return false;
+    }
+
+    /**
+     * Wait until the blob is uploaded.
+     * @param blobPath
+     */
+    public void await(final BlobPath blobPath) throws IOException {
+        await(blobPath.buildAsString("/"));
+    }
+
+    private void await(final String path) throws IOException {
+        synchronized (lock) {
+            Entry entry;
+            while ((entry = pending.get(path)) != null) {
+                if (entry.failure != null) {
+                    throw new IOException("Failed to upload spooled blob " + path, entry.failure);
+                }
+                waitForChange();
+            }
+        }
+    }
+
+    /**
+     * Wait until every spooled blob is uploaded. Blobs that failed get
+     * {@value #MAX_ATTEMPTS} more attempts before this fails.
+     */
+    public void drain() throws IOException {
+        final List<Entry> retries = new ArrayList<>();
+        synchronized (lock) {
+            for (final Entry entry : pending.values()) {
+                if (entry.failure != null) {
+                    entry.failure = null;
+                    entry.attempts = 0;
+                    if (!deferred.contains(entry)) {
+                        retries.add(entry);
+                    }
+                }
+            }
+        }
+        for (final Entry entry : retries) {
+            submit(entry);
+        }
+
+        synchronized (lock) {
+            while (!pending.isEmpty()) {
+                for (final Entry entry : pending.values()) {
+                    if (entry.failure != null) {
+                        throw new IOException("Failed to upload spooled blob " + entry.path,
+                            entry.failure);
+                    }
+                }
+                waitForChange();
+            }
+        }
+    }
+
+    public void close() {
+        executor.shutdown();
+    }
+
+    private void reserve(final long size) throws IOException {
+        synchronized (lock) {
+            final long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (used > 0 && used + size > maxSize) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IOException("Timed out waiting for space in spool " + directory
+                        + ": " + used + " of " + maxSize + " bytes are not uploaded.");
+                }
+                waitForChange(remaining);
+            }
+            used += size;
+        }
+    }
+
+    private void release(final long size) {
+        synchronized (lock) {
+            used -= size;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Drop an older entry for the same path. Called with the lock held.
+     */
+    private void supersede(final Entry old) {
+        if (old == null) {
+            return;
+        }
+        old.cancelled = true;
+        if (!old.uploading) {
+            used -= old.size;
+            if (deferred.remove(old)) {
+                deleteFiles(old);
+            }
+        }
+    }
+
+    /**
+     * Wake up waiters and resubmit deferred metadata uploads.
+     * Called with the lock held.
+     */
+    private void changed() {
+        lock.notifyAll();
+        if (!deferred.isEmpty()) {
+            final List<Entry> entries = new ArrayList<>(deferred);
+            deferred.clear();
+            for (final Entry entry : entries) {
+                submit(entry);
+            }
+        }
+    }
+
+    private void submit(final Entry entry) {
+        schedule(entry, 0L);
+    }
+
+    private void schedule(final Entry entry, final long delay) {
+        final UploadTask task;
+        synchronized (lock) {
+            // a task scheduled earlier for the entry becomes stale
+            task = new UploadTask(entry, ++entry.run);
+        }
+        try {
+            executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+        } catch (final RejectedExecutionException e) {
+            // shutting down, the journal keeps the entry for the next start
+        }
+    }
+
+    private static void deleteFiles(final Entry entry) {
+        try {
+            Files.deleteIfExists(entry.pathFile);
+            Files.deleteIfExists(entry.blobFile);
+            // a cancelled entry must not come back after a crash
+            IOUtils.fsync(entry.pathFile.getParent(), true);
+        } catch (final IOException e) {
+            logger.warn("Failed to delete spooled blob {}", e, entry.blobFile);
+        }
+    }
+
+    private void waitForChange() throws IOException {
+        waitForChange(0L);
+    }
+
+    private void waitForChange(final long timeout) throws IOException {
+        try {
+            lock.wait(timeout);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for spooled uploads.");
+        }
+    }
+
+    private long writeDurably(final Path file, final InputStream inputStream) throws IOException {
+        final Path tempFile = directory.resolve(file.getFileName() + TEMP_SUFFIX);
+        final long size;
+        try (InputStream in = inputStream;
+            FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            final OutputStream os = Channels.newOutputStream(channel);
+            size = Streams.copy(in, os);
+            channel.force(true);
+        }
+        Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE);
+        // the rename is durable only when the directory is synced
+        IOUtils.fsync(directory, true);
+        return size;
+    }
+
+    /**
+     * @return the sequence number in a journal file name, or -1 if the
+     *         file was not written by the spool
+     */
+    private static long sequence(final String name, final String suffix) {
+        try {
+            return Long.parseLong(name.substring(0, name.length() - suffix.length()));
+        } catch (final NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String prefix(final BlobPath blobPath) {
+        final String path = blobPath.buildAsString("/");
+        return path.isEmpty() || path.endsWith("/") ? path : path + "/";
+    }
+
+    private static class Entry {
+        private final long seq;
+
+        private String path;
+
+        private String container;
+
+        private String name;
+
+        private final Path blobFile;
+
+        private final Path pathFile;
+
+        private final long size;
+
+        private boolean uploading;
+
+        private boolean cancelled;
+
+        private int attempts;
+
+        private int run;
+
+        private Exception failure;
+
+        Entry(final long seq, final String path, final Path blobFile, final Path pathFile,
+            final long size) {
+            this.seq = seq;
+            this.blobFile = blobFile;
+            this.pathFile = pathFile;
+            this.size = size;
+            setPath(path);
+        }
+
+        /**
+         * Called with the lock held while the entry is not uploading.
+         */
+        void setPath(final String path) {
+            this.path = path;
+            final int index = path.lastIndexOf('/');
+            this.container = index < 0 ? "" : path.substring(0, index + 1);
+            this.name = path.substring(index + 1);
+        }
+
+        BlobPath blobPath() {
+            BlobPath blobPath = BlobPath.cleanPath();
+            for (final String element : path.split("/")) {
+                if (!element.isEmpty()) {
+                    blobPath = blobPath.add(element);
+                }
+            }
+            return blobPath;
+        }
+    }
+
+    private class UploadTask implements Runnable {
+        private final Entry entry;
+
+        private final int run;
+
+        UploadTask(final Entry entry, final int run) {
+            this.entry = entry;
+            this.run = run;
+        }
+
+        @Override
+        public void run() {
+            synchronized (lock) {
+                if (entry.cancelled) {
+                    deleteFiles(entry);
+                    return;
+                }
+                if (run != entry.run || entry.uploading) {
+                    return;
+                }
+                if (!entry.name.startsWith(DATA_BLOB_PREFIX)) {
+                    // metadata must not land before the blobs spooled ahead of it
+                    final Entry earlier = earlierEntry();
+                    if (earlier != null) {
+                        if (earlier.failure != null) {
+                            entry.failure = new IOException("Spooled blob " + earlier.path
+                                + " was not uploaded.", earlier.failure);
+                            lock.notifyAll();
+                        }
+                        if (!deferred.contains(entry)) {
+                            deferred.add(entry);
+                        }
+                        return;
+                    }
+                }
+                if (entry.attempts < MAX_ATTEMPTS) {
+                    entry.failure = null;
+                }
+                entry.uploading = true;
+            }
+
+            try {
+                try (InputStream in = Files.newInputStream(entry.blobFile)) {
+                    uploader.upload(entry.blobPath(), in, entry.size);
+                }
+            } catch (final Exception e) {
+                final int attempts;
+                synchronized (lock) {
+                    entry.uploading = false;
+                    if (entry.cancelled) {
+                        // superseded while uploading
+                        used -= entry.size;
+                        changed();
+                        deleteFiles(entry);
+                        return;
+                    }
+                    attempts = ++entry.attempts;
+                    if (attempts >= MAX_ATTEMPTS) {
+                        if (entry.failure == null) {
+                            logger.warn("Failed to upload spooled blob {}, retrying", e,
+                                entry.path);
+                        }
+                        entry.failure = e;
+                        lock.notifyAll();
+                    }
+                }
+                schedule(entry, Math.min(MAX_RETRY_DELAY, 1000L << Math.min(attempts - 1, 6)));
+                return;
+            }
+
+            synchronized (lock) {
+                entry.uploading = false;
+                if (pending.get(entry.path) == entry) {
+                    pending.remove(entry.path);
+                }
+                used -= entry.size;
+                changed();
+            }
+            deleteFiles(entry);
+        }
+
+        private Entry earlierEntry() {
+            for (final Entry other : pending.values()) {
+                if (other.seq < entry.seq && other.container.equals(entry.container)) {
+                    return other;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.codelibs.elasticsearch.repository.ssh.blobstore;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Minimal ustar writer for regular files.
+ */
+class TarWriter {
+
+    private static final int BLOCK_SIZE = 512;
+
+    private final OutputStream out;
+
+    private final byte[] header = new byte[BLOCK_SIZE];
+
+    TarWriter(final OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Returns true if the path fits the name and prefix fields of a header.
+     */
+    static boolean fits(final String path) {
+        return split(path.getBytes(StandardCharsets.UTF_8)) >= 0;
+    }
+
+    void putEntry(final String path, final byte[] data, final long mtime) throws IOException {
+        Arrays.fill(header, (byte) 0);
+
+        final byte[] name = path.getBytes(StandardCharsets.UTF_8);
+        final int index = split(name);
+        if (index < 0) {
+            throw new IOException("Path is too long for tar: " + path);
+        } else if (index == 0) {
+            System.arraycopy(name, 0, header, 0, name.length);
+        } else {
+            System.arraycopy(name, 0, header, 345, index);
+            System.arraycopy(name, index + 1, header, 0, name.length - index - 1);
+        }
+
+        octal(0644, 100, 8);
+        octal(0, 108, 8);
+        octal(0, 116, 8);
+        octal(data.length, 124, 12);
+        octal(mtime, 136, 12);
+        header[156] = '0';
+        final byte[] magic = "ustar\u000000".getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(magic, 0, header, 257, magic.length);
+
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long checksum = 0;
+        for (final byte b : header) {
+            checksum += b & 0xff;
+        }
+        octal(checksum, 148, 7);
+        header[155] = ' ';
+
+        out.write(header);
+        out.write(data);
+        final int padding = (BLOCK_SIZE - data.length % BLOCK_SIZE) % BLOCK_SIZE;
+        if (padding > 0) {
+            out.write(new byte[padding]);
+        }
+    }
+
+    /**
+     * @return 0 if the name field holds the whole path, the index of the
+     *         slash between the prefix and the name, or -1 if it does not fit
+     */
+    private static int split(final byte[] name) {
+        if (name.length <= 100) {
+            return 0;
+        }
+        for (int i = name.length - 1; i > 0; i--) {
+            if (name[i] == '/' && i <= 155 && name.length - i - 1 <= 100) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    void finish() throws IOException {
+        out.write(new byte[BLOCK_SIZE * 2]);
+        out.flush();
+    }
+
+    /**
+     * Write a zero-padded, NUL-terminated octal number into the header.
+     */
+    private void octal(final long value, final int offset, final int length) {
+        final String s = Long.toOctalString(value);
+        final int digits = length - 1;
+        if (s.length() > digits) {
+            throw new IllegalArgumentException("Value is too large for tar: " + value);
+        }
+        for (int i = 0; i < digits - s.length(); i++) {
+            header[offset + i] = '0';
+        }
+        for (int i = 0; i < s.length(); i++) {
+            header[offset + digits - s.length() + i] = (byte) s.charAt(i);
+        }
+        header[offset + digits] = 0;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.codelibs.elasticsearch.repository.ssh.rest;
+
+import org.codelibs.elasticsearch.repository.ssh.SshGarbageCollector;
+import org.codelibs.elasticsearch.repository.ssh.SshRepository;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.repositories.RepositoriesService;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Finds, and unless it is a dry run deletes, blobs of an SSH repository
+ * that no snapshot refers to.
+ */
+public class RestCollectSshGarbageAction extends BaseRestHandler {
+
+    private final ClusterService clusterService;
+
+    private final RepositoriesService repositoriesService;
+
+    private final ThreadPool threadPool;
+
+    @Inject
+    public RestCollectSshGarbageAction(final Settings settings, final RestController controller,
+        final Client client, final ClusterService clusterService,
+        final RepositoriesService repositoriesService, final ThreadPool threadPool) {
+        super(settings, controller, client);
+        this.clusterService = clusterService;
+        this.repositoriesService = repositoriesService;
+        this.threadPool = threadPool;
+        controller.registerHandler(RestRequest.Method.POST, "/_ssh/{repository}/_gc", this);
+    }
+
+    @Override
+    protected void handleRequest(final RestRequest request, final RestChannel channel,
+        final Client client) throws Exception {
+        final String name = request.param("repository");
+        final boolean dryRun = request.paramAsBoolean("dry_run", true);
+        final TimeValue gracePeriod =
+            request.paramAsTime("grace_period", TimeValue.timeValueHours(24));
+        final int parallelism = request.paramAsInt("parallelism", 4);
+        final SshRepository repository = SshRepository.get(repositoriesService, name);
+
+        threadPool.executor(ThreadPool.Names.SNAPSHOT).execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final SshGarbageCollector collector =
+                        new SshGarbageCollector(settings, clusterService, name, repository,
+                            dryRun, gracePeriod);
+                    collector.run(Math.max(1, parallelism));
+                    final XContentBuilder builder = XContentFactory.jsonBuilder();
+                    builder.startObject();
+                    builder.field("repository", name);
+                    builder.field("dry_run", collector.isDryRun());
+                    builder.field("checked", collector.getCheckedBlobs());
+                    builder.field("orphans", collector.getOrphanBlobs());
+                    builder.field("orphan_bytes", collector.getOrphanBytes());
+                    builder.field("deleted", collector.isDryRun() ? 0 : collector.getOrphanBlobs());
+                    builder.startArray("blobs");
+                    for (final String path : collector.getReportedBlobs()) {
+                        builder.value(path);
+                    }
+                    builder.endArray();
+                    builder.endObject();
+                    channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+                } catch (final Throwable t) {
+                    RestVerifySshBlobsAction.sendFailure(channel, t);
+                }
+            }
+        });
+    }
+}
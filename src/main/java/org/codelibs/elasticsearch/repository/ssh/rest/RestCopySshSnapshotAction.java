@@ -0,0 +1,112 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.codelibs.elasticsearch.repository.ssh.rest;
+
+import org.codelibs.elasticsearch.repository.ssh.SshRepository;
+import org.codelibs.elasticsearch.repository.ssh.SshSnapshotCopier;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.repositories.RepositoriesService;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Copies a snapshot to another SSH repository on the same server.
+ * It must be sent to the elected master node.
+ */
+public class RestCopySshSnapshotAction extends BaseRestHandler {
+
+    private final ClusterService clusterService;
+
+    private final RepositoriesService repositoriesService;
+
+    private final ThreadPool threadPool;
+
+    @Inject
+    public RestCopySshSnapshotAction(final Settings settings, final RestController controller,
+        final Client client, final ClusterService clusterService,
+        final RepositoriesService repositoriesService, final ThreadPool threadPool) {
+        super(settings, controller, client);
+        this.clusterService = clusterService;
+        this.repositoriesService = repositoriesService;
+        this.threadPool = threadPool;
+        controller.registerHandler(RestRequest.Method.POST, "/_ssh/{repository}/{snapshot}/_copy",
+            this);
+    }
+
+    @Override
+    protected void handleRequest(final RestRequest request, final RestChannel channel,
+        final Client client) throws Exception {
+        final String name = request.param("repository");
+        final String snapshot = request.param("snapshot");
+        final String targetName = request.param("target");
+        final int parallelism = request.paramAsInt("parallelism", 4);
+        if (targetName == null) {
+            channel.sendResponse(new BytesRestResponse(RestStatus.BAD_REQUEST,
+                "target is required."));
+            return;
+        }
+        final DiscoveryNodes nodes = clusterService.state().nodes();
+        if (!nodes.localNodeMaster()) {
+            final DiscoveryNode master = nodes.masterNode();
+            channel.sendResponse(new BytesRestResponse(RestStatus.BAD_REQUEST,
+                "Send the request to the elected master node"
+                    + (master != null ? " [" + master.getName() + "]." : ".")));
+            return;
+        }
+        final SshRepository source = SshRepository.get(repositoriesService, name);
+        final SshRepository target = SshRepository.get(repositoriesService, targetName);
+
+        threadPool.executor(ThreadPool.Names.GENERIC).execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final SshSnapshotCopier copier =
+                        new SshSnapshotCopier(settings, clusterService, name, source,
+                            targetName, target);
+                    final int shards = copier.copy(snapshot, Math.max(1, parallelism));
+                    final XContentBuilder builder = XContentFactory.jsonBuilder();
+                    builder.startObject();
+                    builder.field("repository", name);
+                    builder.field("snapshot", snapshot);
+                    builder.field("target", targetName);
+                    builder.field("shards", shards);
+                    builder.field("copied_files", copier.getCopiedFiles());
+                    builder.field("reused_files", copier.getReusedFiles());
+                    builder.endObject();
+                    channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+                } catch (final Throwable t) {
+                    RestVerifySshBlobsAction.sendFailure(channel, t);
+                }
+            }
+        });
+    }
+}
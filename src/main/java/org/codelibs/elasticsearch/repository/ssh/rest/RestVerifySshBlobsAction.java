@@ -0,0 +1,101 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.codelibs.elasticsearch.repository.ssh.rest;
+
+import java.io.IOException;
+
+import org.codelibs.elasticsearch.repository.ssh.SshRepository;
+import org.codelibs.elasticsearch.repository.ssh.blobstore.ChecksumReport;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.blobstore.BlobPath;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.repositories.RepositoriesService;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Checks stored checksums of all blobs in an SSH repository on the server.
+ */
+public class RestVerifySshBlobsAction extends BaseRestHandler {
+
+    private final RepositoriesService repositoriesService;
+
+    private final ThreadPool threadPool;
+
+    @Inject
+    public RestVerifySshBlobsAction(final Settings settings, final RestController controller,
+        final Client client, final RepositoriesService repositoriesService,
+        final ThreadPool threadPool) {
+        super(settings, controller, client);
+        this.repositoriesService = repositoriesService;
+        this.threadPool = threadPool;
+        controller.registerHandler(RestRequest.Method.POST, "/_ssh/{repository}/_verify_blobs",
+            this);
+    }
+
+    @Override
+    protected void handleRequest(final RestRequest request, final RestChannel channel,
+        final Client client) throws Exception {
+        final String name = request.param("repository");
+        final int parallelism = request.paramAsInt("parallelism", 4);
+        final SshRepository repository = SshRepository.get(repositoriesService, name);
+
+        threadPool.executor(ThreadPool.Names.SNAPSHOT).execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final ChecksumReport report =
+                        repository.blobStore().verifyChecksums(BlobPath.cleanPath(), parallelism);
+                    final XContentBuilder builder = XContentFactory.jsonBuilder();
+                    builder.startObject();
+                    builder.field("repository", name);
+                    builder.field("checked", report.getChecked());
+                    builder.startArray("failures");
+                    for (final String path : report.getFailures()) {
+                        builder.value(path);
+                    }
+                    builder.endArray();
+                    builder.endObject();
+                    // mismatches are the result of a completed check, not an error
+                    channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+                } catch (final Throwable t) {
+                    sendFailure(channel, t);
+                }
+            }
+        });
+    }
+
+    static void sendFailure(final RestChannel channel, final Throwable t) {
+        try {
+            channel.sendResponse(new BytesRestResponse(channel, t));
+        } catch (final IOException e) {
+            channel.sendResponse(
+                new BytesRestResponse(RestStatus.INTERNAL_SERVER_ERROR, e.getMessage()));
+        }
+    }
+}
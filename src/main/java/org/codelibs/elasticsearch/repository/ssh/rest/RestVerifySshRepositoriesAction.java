@@ -0,0 +1,97 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.codelibs.elasticsearch.repository.ssh.rest;
+
+import java.util.List;
+
+import org.codelibs.elasticsearch.repository.ssh.SshRepositoryVerifier;
+import org.codelibs.elasticsearch.repository.ssh.SshRepositoryVerifier.Result;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+
+/**
+ * Verifies all SSH repositories on all nodes, several at the same time.
+ */
+public class RestVerifySshRepositoriesAction extends BaseRestHandler {
+
+    @Inject
+    public RestVerifySshRepositoriesAction(final Settings settings,
+        final RestController controller, final Client client) {
+        super(settings, controller, client);
+        controller.registerHandler(RestRequest.Method.POST, "/_ssh/_verify", this);
+    }
+
+    @Override
+    protected void handleRequest(final RestRequest request, final RestChannel channel,
+        final Client client) throws Exception {
+        final int parallelism = request.paramAsInt("parallelism", 4);
+
+        new SshRepositoryVerifier(client, parallelism).verify(
+            new ActionListener<List<Result>>() {
+                @Override
+                public void onResponse(final List<Result> results) {
+                    try {
+                        boolean verified = true;
+                        final XContentBuilder builder = XContentFactory.jsonBuilder();
+                        builder.startObject();
+                        builder.startArray("repositories");
+                        for (final Result result : results) {
+                            builder.startObject();
+                            builder.field("name", result.getRepository());
+                            builder.field("verified", result.getFailure() == null);
+                            if (result.getFailure() == null) {
+                                builder.startArray("nodes");
+                                for (final String node : result.getNodes()) {
+                                    builder.value(node);
+                                }
+                                builder.endArray();
+                            } else {
+                                builder.field("error", result.getFailure().toString());
+                                verified = false;
+                            }
+                            builder.endObject();
+                        }
+                        builder.endArray();
+                        builder.endObject();
+                        channel.sendResponse(new BytesRestResponse(
+                            verified ? RestStatus.OK : RestStatus.INTERNAL_SERVER_ERROR,
+                            builder));
+                    } catch (final Throwable t) {
+                        RestVerifySshBlobsAction.sendFailure(channel, t);
+                    }
+                }
+
+                @Override
+                public void onFailure(final Throwable e) {
+                    RestVerifySshBlobsAction.sendFailure(channel, e);
+                }
+            });
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.codelibs.elasticsearch.repository.ssh.utils;
+
+/**
+ * Circuit breaker for connections to one host. It opens after consecutive
+ * connection failures, and lets a single trial connection through once a
+ * health probe succeeds or the probe interval has passed.
+ */
+public class SshCircuitBreaker {
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN;
+    }
+
+    private final int failureThreshold;
+
+    private final long probeInterval;
+
+    private State state = State.CLOSED;
+
+    private int failures;
+
+    private long openedAt;
+
+    private boolean trialInFlight;
+
+    public SshCircuitBreaker(final int failureThreshold, final long probeInterval) {
+        this.failureThreshold = failureThreshold;
+        this.probeInterval = probeInterval;
+    }
+
+    /**
+     * Returns true if a connection may be attempted. The caller must report
+     * the result with onSuccess or onFailure.
+     * @return
+     */
+    public synchronized boolean allowRequest() {
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() - openedAt < probeInterval) {
+                return false;
+            }
+            state = State.HALF_OPEN;
+        }
+        if (state == State.HALF_OPEN) {
+            if (trialInFlight) {
+                return false;
+            }
+            trialInFlight = true;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if requests are refused without changing the state.
+     * @return
+     */
+    public synchronized boolean isRejecting() {
+        return state == State.OPEN && System.currentTimeMillis() - openedAt < probeInterval
+                || state == State.HALF_OPEN && trialInFlight;
+    }
+
+    public synchronized void onSuccess() {
+        failures = 0;
+        trialInFlight = false;
+        state = State.CLOSED;
+    }
+
+    /**
+     * @return true if this failure opened the circuit
+     */
+    public synchronized boolean onFailure() {
+        trialInFlight = false;
+        failures++;
+        if (state == State.HALF_OPEN
+                || state == State.CLOSED && failures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * A health probe reached the host, so let the next request through.
+     */
+    public synchronized void onProbeSuccess() {
+        if (state == State.OPEN) {
+            state = State.HALF_OPEN;
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.codelibs.elasticsearch.repository.ssh.utils;
+
+/**
+ * AIMD limit on concurrent sessions for one host. The limit is halved
+ * when the server refuses connections or channels, and grows by one
+ * after a full window of successful operations.
+ */
+public class SshConcurrencyLimiter {
+
+    private final int maxLimit;
+
+    private int limit;
+
+    private int inFlight;
+
+    private int successes;
+
+    public SshConcurrencyLimiter(final int maxLimit) {
+        this.maxLimit = maxLimit;
+        this.limit = maxLimit;
+    }
+
+    /**
+     * wait for a permit
+     * @param timeoutMillis
+     * @return false if no permit was available in time
+     */
+    public synchronized boolean acquire(final long timeoutMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        long wait = timeoutMillis;
+        while (inFlight >= limit) {
+            if (wait <= 0) {
+                return false;
+            }
+            wait(wait);
+            wait = deadline - System.currentTimeMillis();
+        }
+        inFlight++;
+        return true;
+    }
+
+    public synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    public synchronized void onSuccess() {
+        successes++;
+        if (successes >= limit) {
+            successes = 0;
+            if (limit < maxLimit) {
+                limit++;
+                notifyAll();
+            }
+        }
+    }
+
+    public synchronized void onOverload() {
+        limit = Math.max(1, limit / 2);
+        successes = 0;
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+}
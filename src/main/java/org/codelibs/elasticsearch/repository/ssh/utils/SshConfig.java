@@ -29,6 +29,7 @@ public class SshConfig {
   private String privateKey;
   private String passphrase;
   private String location;
+  private int connectTimeout;
 
   public String getHost() {
     return host;
@@ -101,4 +102,30 @@ public class SshConfig {
   public void setLocation(String location) {
     this.location = location;
   }
+
+  public int getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  public void setConnectTimeout(int connectTimeout) {
+    this.connectTimeout = connectTimeout;
+  }
+
+  /**
+   * Returns a copy of this configuration for another host.
+   */
+  public SshConfig copy(String host, int port) {
+    SshConfig config = new SshConfig();
+    config.setHost(host);
+    config.setPort(port);
+    config.setUsername(username);
+    config.setPassword(password);
+    config.setKnownHosts(knownHosts);
+    config.setIgnoreHostKeyChecking(ignoreHostKeyChecking);
+    config.setPrivateKey(privateKey);
+    config.setPassphrase(passphrase);
+    config.setLocation(location);
+    config.setConnectTimeout(connectTimeout);
+    return config;
+  }
 }
@@ -21,20 +21,60 @@ package org.codelibs.elasticsearch.repository.ssh.utils;
 
 import java.security.AccessController;
 import java.security.PrivilegedAction;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.pool2.BaseKeyedPooledObjectFactory;
 import org.apache.commons.pool2.PooledObject;
 import org.apache.commons.pool2.impl.DefaultPooledObject;
 import org.apache.commons.pool2.impl.GenericKeyedObjectPool;
 import org.apache.commons.pool2.impl.GenericKeyedObjectPoolConfig;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.threadpool.ThreadPool;
 
 import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.Session;
 
 public class SshPool {
+    /**
+     * How blobs are placed when more than one host is configured.
+     */
+    public enum Placement {
+        /** hosts share the same data and are tried in order */
+        FAILOVER,
+        /** shard directories are spread over hosts by consistent hashing */
+        STRIPED;
+    }
+
     private GenericKeyedObjectPool<SshConfig, Session> pool;
 
-    private SshConfig config;
+    private final SshPoolFactory factory = new SshPoolFactory();
+
+    private List<SshConfig> configs;
+
+    private Placement placement;
+
+    private long retryInterval;
+
+    private long acquireTimeout;
+
+    private long probeInterval;
+
+    private ThreadPool threadPool;
+
+    private volatile boolean closed;
+
+    private final ConcurrentMap<SshConfig, SshConcurrencyLimiter> limiters =
+            new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<SshConfig, SshCircuitBreaker> breakers =
+            new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<SshConfig, Long> downUntil = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<Session, SshConfig> borrowed = new ConcurrentHashMap<>();
 
     /**
      * create SshPool with default GenericKeyedObjectPoolConfig
@@ -51,15 +91,43 @@ public class SshPool {
      */
     public SshPool(final SshConfig config,
             final GenericKeyedObjectPoolConfig poolConfig) {
-        this.config = config;
+        this(Collections.singletonList(config), poolConfig, null);
+    }
+
+    /**
+     * create Ssh Pool for multiple hosts
+     * @param configs hosts in order of preference
+     * @param poolConfig an SshPoolConfig to configure placement, concurrency
+     *        control and circuit breaking, or defaults are used
+     * @param threadPool runs health probes for hosts with an open circuit,
+     *        or null to probe on the next request
+     */
+    public SshPool(final List<SshConfig> configs,
+            final GenericKeyedObjectPoolConfig poolConfig,
+            final ThreadPool threadPool) {
+        final SshPoolConfig sshPoolConfig = poolConfig instanceof SshPoolConfig
+                ? (SshPoolConfig) poolConfig : new SshPoolConfig();
+        this.configs = configs;
+        this.placement = sshPoolConfig.getPlacement();
+        this.retryInterval = sshPoolConfig.getRetryInterval();
+        this.acquireTimeout = sshPoolConfig.getAcquireTimeout();
+        this.probeInterval = sshPoolConfig.getProbeInterval();
+        this.threadPool = threadPool;
+        final int maxSessions = poolConfig.getMaxTotalPerKey() > 0
+                ? poolConfig.getMaxTotalPerKey() : Integer.MAX_VALUE;
+        for (final SshConfig config : configs) {
+            limiters.put(config, new SshConcurrencyLimiter(maxSessions));
+            breakers.put(config, new SshCircuitBreaker(
+                    sshPoolConfig.getFailureThreshold(), probeInterval));
+        }
 
         this.pool = AccessController.doPrivileged(
                 new PrivilegedAction<GenericKeyedObjectPool<SshConfig, Session>>() {
                     @Override
                     public GenericKeyedObjectPool<SshConfig, Session> run() {
                         try {
-                            return new GenericKeyedObjectPool<>(
-                                    new SshPoolFactory(), poolConfig);
+                            return new GenericKeyedObjectPool<>(factory,
+                                    poolConfig);
                         } catch (final Exception e) {
                             throw new SshPoolException("could not init pool.",
                                     e);
@@ -68,16 +136,220 @@ public class SshPool {
                 });
     }
 
+    public List<SshConfig> getConfigs() {
+        return configs;
+    }
+
+    public Placement getPlacement() {
+        return placement;
+    }
+
     /**
      * borrow session from pool
      * @return
      */
     public Session getSession() {
+        return getSession((String) null);
+    }
+
+    /**
+     * borrow session for the given routing key from pool
+     * @param routingKey a shard directory in striped mode, or null for the primary host
+     * @return
+     */
+    public Session getSession(final String routingKey) {
+        if (placement == Placement.STRIPED) {
+            return getSession(route(routingKey));
+        }
+
+        final long now = System.currentTimeMillis();
+        SshPoolException failure = null;
+        for (final SshConfig config : configs) {
+            final Long until = downUntil.get(config);
+            if (until != null && until > now && configs.size() > 1) {
+                continue;
+            }
+            try {
+                final Session session = getSession(config);
+                downUntil.remove(config);
+                return session;
+            } catch (final SshPoolException e) {
+                downUntil.put(config, now + retryInterval);
+                failure = e;
+            }
+        }
+        if (failure == null) {
+            failure = new SshPoolException("no available host.");
+        }
+        throw failure;
+    }
+
+    /**
+     * borrow session for a specific host from pool.
+     * While the host drops connections because it is busy, callers are queued with
+     * a shrinking concurrency limit until the acquire timeout.
+     * @param config
+     * @return
+     */
+    public Session getSession(final SshConfig config) {
+        final SshConcurrencyLimiter limiter = limiters.get(config);
+        final SshCircuitBreaker breaker = breakers.get(config);
+        final long deadline = System.currentTimeMillis() + acquireTimeout;
+        long backoff = 100L;
+        while (true) {
+            if (breaker.isRejecting()) {
+                throw unavailable(config);
+            }
+            try {
+                if (!limiter.acquire(Math.max(0L, deadline - System.currentTimeMillis()))) {
+                    throw new SshPoolException("timed out waiting for a session to "
+                            + config.getHost() + ".");
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SshPoolException("interrupted while waiting for a session.", e);
+            }
+            if (!breaker.allowRequest()) {
+                limiter.release();
+                throw unavailable(config);
+            }
+            try {
+                final Session session = pool.borrowObject(config);
+                breaker.onSuccess();
+                borrowed.put(session, config);
+                return session;
+            } catch (final Exception e) {
+                limiter.release();
+                // a busy server drops some connections, so that counts as
+                // a failure of the host only when the caller gives up
+                if (!isOverload(e) || System.currentTimeMillis() + backoff > deadline
+                        || breaker.getState() != SshCircuitBreaker.State.CLOSED) {
+                    if (breaker.onFailure()) {
+                        scheduleProbe(config);
+                    }
+                    throw new SshPoolException("could not get session from pool.", e);
+                }
+                limiter.onOverload();
+            }
+            backoff = sleep(backoff);
+        }
+    }
+
+    private SshHostUnavailableException unavailable(final SshConfig config) {
+        return new SshHostUnavailableException("SSH host " + config.getHost() + ":"
+                + config.getPort() + " is unavailable, and requests fail fast until it recovers.");
+    }
+
+    /**
+     * Probe the host in the background until it accepts a connection.
+     * @param config
+     */
+    private void scheduleProbe(final SshConfig config) {
+        if (threadPool == null || closed) {
+            return;
+        }
+        threadPool.schedule(TimeValue.timeValueMillis(probeInterval), ThreadPool.Names.GENERIC,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        final SshCircuitBreaker breaker = breakers.get(config);
+                        if (closed || breaker.getState() != SshCircuitBreaker.State.OPEN) {
+                            return;
+                        }
+                        try {
+                            factory.create(config).disconnect();
+                            breaker.onProbeSuccess();
+                        } catch (final Exception e) {
+                            scheduleProbe(config);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Invalidate a session whose channel could not be opened because the
+     * server is overloaded, and wait before the caller tries again.
+     * @param session
+     * @param deadline
+     * @return false if the caller should give up
+     */
+    public boolean onOverload(final Session session, final long deadline) {
+        final SshConfig config = borrowed.get(session);
+        invalidateSession(session);
+        if (config == null || System.currentTimeMillis() >= deadline) {
+            return false;
+        }
+        limiters.get(config).onOverload();
+        sleep(100L);
+        return true;
+    }
+
+    public long getAcquireTimeout() {
+        return acquireTimeout;
+    }
+
+    /**
+     * Returns true if the failure means that the server is busy: sshd over
+     * MaxStartups or MaxSessions accepts a connection and then closes it,
+     * or refuses a channel. A refused TCP connection means sshd is not
+     * running, which is a failure of the host.
+     * @param e
+     * @return
+     */
+    public static boolean isOverload(final Throwable e) {
+        Throwable t = e;
+        while (t != null) {
+            final String message = t.getMessage();
+            if (message != null && (message.contains("channel is not opened")
+                    || message.contains("Connection reset")
+                    || message.contains("connection is closed by foreign host"))) {
+                return true;
+            }
+            t = t.getCause();
+        }
+        return false;
+    }
+
+    private static long sleep(final long millis) {
         try {
-            return pool.borrowObject(config);
-        } catch (final Exception e) {
-            throw new SshPoolException("could not get session from pool.", e);
+            Thread.sleep(millis);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SshPoolException("interrupted while waiting for a session.", e);
         }
+        return Math.min(millis * 2, 2000L);
+    }
+
+    /**
+     * Select a host for the routing key by rendezvous hashing, so that
+     * adding or removing a host moves as few keys as possible.
+     * @param routingKey
+     * @return
+     */
+    public SshConfig route(final String routingKey) {
+        if (routingKey == null || configs.size() == 1) {
+            return configs.get(0);
+        }
+        SshConfig selected = null;
+        int max = 0;
+        for (final SshConfig config : configs) {
+            final int hash = mix((config.getHost() + ":" + config.getPort()
+                    + "/" + routingKey).hashCode());
+            if (selected == null || hash > max) {
+                selected = config;
+                max = hash;
+            }
+        }
+        return selected;
+    }
+
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
     }
 
     /**
@@ -85,6 +357,11 @@ public class SshPool {
      * @param session
      */
     public void returnSession(final Session session) {
+        final SshConfig config = borrowed.remove(session);
+        if (config == null) {
+            return;
+        }
+        limiters.get(config).release();
         try {
             pool.returnObject(config, session);
         } catch (final IllegalStateException e) {
@@ -92,11 +369,29 @@ public class SshPool {
         }
     }
 
+    /**
+     * Record that a channel was opened on a borrowed session. Only this
+     * lets the concurrency limit of the host grow again, so sessions
+     * returned after a failure do not count as successes.
+     * @param session
+     */
+    public void onChannelOpened(final Session session) {
+        final SshConfig config = borrowed.get(session);
+        if (config != null) {
+            limiters.get(config).onSuccess();
+        }
+    }
+
     /**
      * invalidate the broken session
      * @param session
      */
     public void invalidateSession(final Session session) {
+        final SshConfig config = borrowed.remove(session);
+        if (config == null) {
+            return;
+        }
+        limiters.get(config).release();
         try {
             pool.invalidateObject(config, session);
         } catch (final Exception e) {
@@ -105,6 +400,7 @@ public class SshPool {
     }
 
     public void close() {
+        closed = true;
         pool.close();
     }
 
@@ -138,7 +434,11 @@ public class SshPool {
                 session.setConfig("StrictHostKeyChecking", "no");
             }
 
-            session.connect();
+            if (config.getConnectTimeout() > 0) {
+                session.connect(config.getConnectTimeout());
+            } else {
+                session.connect();
+            }
 
             return session;
         }
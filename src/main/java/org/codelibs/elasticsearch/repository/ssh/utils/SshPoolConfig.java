@@ -0,0 +1,86 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.codelibs.elasticsearch.repository.ssh.utils;
+
+import org.apache.commons.pool2.impl.GenericKeyedObjectPoolConfig;
+
+/**
+ * Pool configuration with the settings for host selection,
+ * concurrency control and circuit breaking.
+ */
+public class SshPoolConfig extends GenericKeyedObjectPoolConfig {
+  private SshPool.Placement placement = SshPool.Placement.FAILOVER;
+  private long retryInterval = 30000L;
+  private long acquireTimeout = 60000L;
+  private int failureThreshold = 5;
+  private long probeInterval = 10000L;
+
+  public SshPool.Placement getPlacement() {
+    return placement;
+  }
+
+  public void setPlacement(SshPool.Placement placement) {
+    this.placement = placement;
+  }
+
+  /**
+   * How long a failed host is skipped in failover placement.
+   */
+  public long getRetryInterval() {
+    return retryInterval;
+  }
+
+  public void setRetryInterval(long retryInterval) {
+    this.retryInterval = retryInterval;
+  }
+
+  /**
+   * How long callers wait for a session while the host is overloaded.
+   */
+  public long getAcquireTimeout() {
+    return acquireTimeout;
+  }
+
+  public void setAcquireTimeout(long acquireTimeout) {
+    this.acquireTimeout = acquireTimeout;
+  }
+
+  /**
+   * Consecutive connection failures that open the circuit breaker of a host.
+   */
+  public int getFailureThreshold() {
+    return failureThreshold;
+  }
+
+  public void setFailureThreshold(int failureThreshold) {
+    this.failureThreshold = failureThreshold;
+  }
+
+  /**
+   * Interval of health probes while the circuit breaker is open.
+   */
+  public long getProbeInterval() {
+    return probeInterval;
+  }
+
+  public void setProbeInterval(long probeInterval) {
+    this.probeInterval = probeInterval;
+  }
+}
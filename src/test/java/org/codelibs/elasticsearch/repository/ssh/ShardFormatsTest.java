@@ -0,0 +1,58 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.codelibs.elasticsearch.repository.ssh;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class ShardFormatsTest {
+
+    @Test
+    public void snapshotNameIsParsedFromMetadataBlobs() {
+        assertEquals("s1", ShardFormats.snapshotName(ShardFormats.snapshotBlobName("s1")));
+        assertEquals("s1", ShardFormats.snapshotName(ShardFormats.metadataBlobName("s1")));
+        assertEquals("a.b", ShardFormats.snapshotName("snap-a.b.dat"));
+        assertNull(ShardFormats.snapshotName("snap-s1"));
+        assertNull(ShardFormats.snapshotName("index-3"));
+        assertNull(ShardFormats.snapshotName("__1"));
+    }
+
+    @Test
+    public void generationIsParsedWithRadix() {
+        assertEquals(35, ShardFormats.generation("__z", ShardFormats.DATA_BLOB_PREFIX,
+            Character.MAX_RADIX));
+        assertEquals(36, ShardFormats.generation("__10.part2", ShardFormats.DATA_BLOB_PREFIX,
+            Character.MAX_RADIX));
+        assertEquals(12, ShardFormats.generation("index-12", ShardFormats.SHARD_INDEX_PREFIX, 10));
+        assertEquals(-1, ShardFormats.generation("index-x", ShardFormats.SHARD_INDEX_PREFIX, 10));
+        assertEquals(-1, ShardFormats.generation("snap-s1.dat", ShardFormats.DATA_BLOB_PREFIX,
+            Character.MAX_RADIX));
+    }
+
+    @Test
+    public void dataBlobNameRoundTripsGeneration() {
+        assertEquals("__z", ShardFormats.dataBlobName(35));
+        assertEquals(36, ShardFormats.generation(ShardFormats.dataBlobName(36),
+            ShardFormats.DATA_BLOB_PREFIX, Character.MAX_RADIX));
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.codelibs.elasticsearch.repository.ssh;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class SshGarbageCollectorTest {
+
+    private static final Set<String> LIVE = new HashSet<>(Arrays.asList("s1", "s2"));
+
+    @Test
+    public void metadataOfDeletedSnapshotsIsOrphan() {
+        assertFalse(SshGarbageCollector.isOrphan("snap-s1.dat", null, LIVE));
+        assertFalse(SshGarbageCollector.isOrphan("meta-s2.dat", null, LIVE));
+        assertTrue(SshGarbageCollector.isOrphan("snap-s3.dat", null, LIVE));
+        assertTrue(SshGarbageCollector.isOrphan("meta-s3.dat", null, LIVE));
+    }
+
+    @Test
+    public void temporaryBlobsAreOrphan() {
+        assertTrue(SshGarbageCollector.isOrphan("pending-index-3", null, LIVE));
+        assertTrue(SshGarbageCollector.isOrphan("pending-__1", new String[] { "__1" }, LIVE));
+    }
+
+    @Test
+    public void dataBlobsAreCheckedAgainstReferences() {
+        final String[] references = { "__1", "__2.part0", "__2.part1" };
+        assertFalse(SshGarbageCollector.isOrphan("__1", references, LIVE));
+        assertFalse(SshGarbageCollector.isOrphan("__2.part1", references, LIVE));
+        assertTrue(SshGarbageCollector.isOrphan("__2.part2", references, LIVE));
+        assertTrue(SshGarbageCollector.isOrphan("__3", references, LIVE));
+        assertTrue(SshGarbageCollector.isOrphan("__1", new String[0], LIVE));
+    }
+
+    @Test
+    public void otherBlobsAreKept() {
+        assertFalse(SshGarbageCollector.isOrphan("__3", null, LIVE));
+        assertFalse(SshGarbageCollector.isOrphan("index-4", new String[0], LIVE));
+        assertFalse(SshGarbageCollector.isOrphan("index", null, LIVE));
+        assertFalse(SshGarbageCollector.isOrphan("incompatible-snapshots", null, LIVE));
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.codelibs.elasticsearch.repository.ssh;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.lucene.util.Version;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.index.snapshots.blobstore.BlobStoreIndexShardSnapshot.FileInfo;
+import org.elasticsearch.index.snapshots.blobstore.BlobStoreIndexShardSnapshots;
+import org.elasticsearch.index.snapshots.blobstore.SnapshotFiles;
+import org.elasticsearch.index.store.StoreFileMetaData;
+import org.junit.Test;
+
+public class SshSnapshotCopierTest {
+
+    @Test
+    public void sameFileUnderAnotherBlobNameIsReused() {
+        final FileInfo target = file("__5", "_0.cfs", 10, "abc");
+        final BlobStoreIndexShardSnapshots shardSnapshots = index(target);
+
+        assertSame(target, SshSnapshotCopier.findExisting(shardSnapshots,
+            file("__1", "_0.cfs", 10, "abc"), blobs("__5")));
+    }
+
+    @Test
+    public void fileWithOtherContentIsCopied() {
+        final BlobStoreIndexShardSnapshots shardSnapshots =
+            index(file("__5", "_0.cfs", 10, "abc"));
+
+        assertNull(SshSnapshotCopier.findExisting(shardSnapshots,
+            file("__1", "_0.cfs", 10, "abd"), blobs("__5")));
+        assertNull(SshSnapshotCopier.findExisting(shardSnapshots,
+            file("__1", "_0.cfs", 11, "abc"), blobs("__5")));
+        assertNull(SshSnapshotCopier.findExisting(shardSnapshots,
+            file("__1", "_1.cfs", 10, "abc"), blobs("__5")));
+    }
+
+    @Test
+    public void fileWithMissingPartsIsCopied() {
+        final FileInfo target = new FileInfo("__5", new StoreFileMetaData("_0.cfs", 10, "abc",
+            Version.LATEST), new ByteSizeValue(4));
+        final BlobStoreIndexShardSnapshots shardSnapshots = index(target);
+        final FileInfo source = file("__1", "_0.cfs", 10, "abc");
+
+        assertNull(SshSnapshotCopier.findExisting(shardSnapshots, source,
+            blobs("__5.part0", "__5.part1")));
+        assertSame(target, SshSnapshotCopier.findExisting(shardSnapshots, source,
+            blobs("__5.part0", "__5.part1", "__5.part2")));
+    }
+
+    @Test
+    public void targetWithoutShardIndexCopiesEverything() {
+        assertNull(SshSnapshotCopier.findExisting(null, file("__1", "_0.cfs", 10, "abc"),
+            blobs("__1")));
+    }
+
+    private static FileInfo file(final String name, final String physicalName, final long length,
+        final String checksum) {
+        return new FileInfo(name, new StoreFileMetaData(physicalName, length, checksum,
+            Version.LATEST), null);
+    }
+
+    private static BlobStoreIndexShardSnapshots index(final FileInfo... files) {
+        return new BlobStoreIndexShardSnapshots(Collections.singletonList(
+            new SnapshotFiles("s1", Arrays.asList(files))));
+    }
+
+    private static Set<String> blobs(final String... names) {
+        return new HashSet<>(Arrays.asList(names));
+    }
+}
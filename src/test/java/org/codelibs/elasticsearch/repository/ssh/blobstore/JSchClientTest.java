@@ -0,0 +1,61 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.codelibs.elasticsearch.repository.ssh.blobstore;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.elasticsearch.common.blobstore.BlobPath;
+import org.junit.Test;
+
+public class JSchClientTest {
+
+    @Test
+    public void deleteCommandExpandsDefaultLocation() {
+        assertEquals("cd ~/'' && xargs -0 -r rm -f --", JSchClient.deleteCommand("~/"));
+    }
+
+    @Test
+    public void deleteCommandQuotesLocation() {
+        assertEquals("cd ~/'backup dir' && xargs -0 -r rm -f --",
+            JSchClient.deleteCommand("~/backup dir"));
+        assertEquals("cd '/mnt/snapshot' && xargs -0 -r rm -f --",
+            JSchClient.deleteCommand("/mnt/snapshot"));
+    }
+
+    @Test
+    public void deleteInputIsRelativeToLocation() {
+        final BlobPath shardBlob = BlobPath.cleanPath().add("indices").add("idx").add("0")
+            .add("__1");
+        final BlobPath rootBlob = BlobPath.cleanPath().add("snap-1.dat");
+        final String input = new String(
+            JSchClient.deleteInput(Arrays.asList(shardBlob, rootBlob)), StandardCharsets.UTF_8);
+        assertEquals("indices/idx/0/__1\0indices/idx/0/.sha256/__1\0"
+            + "snap-1.dat\0.sha256/snap-1.dat\0", input);
+    }
+
+    @Test
+    public void quoteKeepsHomeExpandable() {
+        assertEquals("~/'a'\\''b'", JSchClient.quote("~/a'b"));
+        assertEquals("'/x'", JSchClient.quote("/x"));
+    }
+}
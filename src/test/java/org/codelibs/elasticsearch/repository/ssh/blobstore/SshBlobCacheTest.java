@@ -0,0 +1,170 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.codelibs.elasticsearch.repository.ssh.blobstore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.elasticsearch.common.blobstore.BlobPath;
+import org.elasticsearch.common.io.Streams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SshBlobCacheTest {
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("ssh-cache");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (final Path file : files()) {
+            Files.delete(file);
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void onlyImmutableBlobsAreCacheable() {
+        assertTrue(SshBlobCache.isCacheable("index-12"));
+        assertTrue(SshBlobCache.isCacheable("snap-s1.dat"));
+        assertTrue(SshBlobCache.isCacheable("meta-s1.dat"));
+        assertFalse(SshBlobCache.isCacheable("index"));
+        assertFalse(SshBlobCache.isCacheable("__1"));
+        assertFalse(SshBlobCache.isCacheable("pending-index-3"));
+    }
+
+    @Test
+    public void keyChangesWithSizeAndModificationTime() {
+        final BlobPath path = BlobPath.cleanPath().add("indices").add("snap-s1.dat");
+        assertEquals(SshBlobCache.key(path, 10, 100), SshBlobCache.key(path, 10, 100));
+        assertFalse(SshBlobCache.key(path, 10, 100).equals(SshBlobCache.key(path, 11, 100)));
+        assertFalse(SshBlobCache.key(path, 10, 100).equals(SshBlobCache.key(path, 10, 101)));
+    }
+
+    @Test
+    public void storedBlobIsReadFromCache() throws IOException {
+        final SshBlobCache cache = new SshBlobCache(directory, 100);
+        assertNull(cache.get("a"));
+        try (InputStream in = cache.put("a", stream("first"))) {
+            assertArrayEquals(bytes("first"), read(in));
+        }
+        try (InputStream in = cache.get("a")) {
+            assertNotNull(in);
+            assertArrayEquals(bytes("first"), read(in));
+        }
+        assertNull(cache.get("b"));
+        assertEquals(1, files().size());
+    }
+
+    @Test
+    public void leastRecentlyUsedBlobIsEvicted() throws IOException {
+        final SshBlobCache cache = new SshBlobCache(directory, 10);
+        cache.put("a", stream("aaaa")).close();
+        cache.put("b", stream("bbbb")).close();
+        cache.get("a").close();
+        cache.put("c", stream("cccc")).close();
+
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+        assertEquals(2, files().size());
+    }
+
+    @Test
+    public void blobLargerThanCacheIsStillReturned() throws IOException {
+        final SshBlobCache cache = new SshBlobCache(directory, 4);
+        assertFalse(cache.accepts(5));
+        cache.put("a", stream("aaaa")).close();
+        try (InputStream in = cache.put("b", stream("bbbbbb"))) {
+            assertArrayEquals(bytes("bbbbbb"), read(in));
+        }
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void entriesSurviveRestart() throws IOException {
+        final SshBlobCache cache = new SshBlobCache(directory, 100);
+        cache.put("a", stream("first")).close();
+        Files.write(directory.resolve("partial.tmp"), bytes("partial"));
+
+        final SshBlobCache reopened = new SshBlobCache(directory, 100);
+        try (InputStream in = reopened.get("a")) {
+            assertArrayEquals(bytes("first"), read(in));
+        }
+        assertEquals(1, files().size());
+    }
+
+    @Test
+    public void deletedFileIsAMiss() throws IOException {
+        final SshBlobCache cache = new SshBlobCache(directory, 100);
+        cache.put("a", stream("first")).close();
+        for (final Path file : files()) {
+            Files.delete(file);
+        }
+        assertNull(cache.get("a"));
+        cache.put("b", stream("second")).close();
+        assertNotNull(cache.get("b"));
+    }
+
+    private List<Path> files() throws IOException {
+        final List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (final Path file : stream) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    private static InputStream stream(final String data) {
+        return new ByteArrayInputStream(bytes(data));
+    }
+
+    private static byte[] bytes(final String data) {
+        return data.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] read(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Streams.copy(in, out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.codelibs.elasticsearch.repository.ssh.blobstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class SshManifestTest {
+
+    private static int parse(final String manifest, final Map<String, Long> blobs)
+        throws IOException {
+        return SshManifest.parse(new BufferedReader(new StringReader(manifest)), blobs);
+    }
+
+    @Test
+    public void parseReplaysAddsAndRemoves() throws IOException {
+        final Map<String, Long> blobs = new LinkedHashMap<>();
+        final int lines = parse("#manifest\n"
+            + "+\t__0\t10\n"
+            + "+\tpending-index-1\t20\n"
+            + "-\tpending-index-1\n+\tindex-1\t20\n"
+            + "+\t__0\t11\n", blobs);
+        assertEquals(5, lines);
+        assertEquals(2, blobs.size());
+        assertEquals(Long.valueOf(11), blobs.get("__0"));
+        assertEquals(Long.valueOf(20), blobs.get("index-1"));
+    }
+
+    @Test
+    public void parseRejectsMissingHeader() throws IOException {
+        assertEquals(-1, parse("+\t__0\t10\n", new LinkedHashMap<String, Long>()));
+        assertEquals(-1, parse("", new LinkedHashMap<String, Long>()));
+    }
+
+    @Test
+    public void parseRejectsMalformedLines() throws IOException {
+        assertEquals(-1, parse("#manifest\n+\t__0\n", new LinkedHashMap<String, Long>()));
+        assertEquals(-1, parse("#manifest\n+\t__0\tten\n", new LinkedHashMap<String, Long>()));
+        assertEquals(-1, parse("#manifest\n*\t__0\t10\n", new LinkedHashMap<String, Long>()));
+    }
+
+    @Test
+    public void compactedManifestHasOneLinePerBlob() throws IOException {
+        final StringBuilder buf = new StringBuilder("#manifest\n");
+        for (int i = 0; i < 1000; i++) {
+            buf.append("+\t__").append(i).append('\t').append(i).append('\n');
+            buf.append("-\t__").append(i).append('\n');
+        }
+        buf.append("+\tindex-0\t5\n");
+        final Map<String, Long> blobs = new LinkedHashMap<>();
+        final int lines = parse(buf.toString(), blobs);
+        assertEquals(2001, lines);
+        assertTrue(SshManifest.needsCompaction(lines, blobs.size()));
+
+        final Map<String, Long> compacted = new LinkedHashMap<>();
+        assertEquals(1, parse(SshManifest.format(blobs), compacted));
+        assertEquals(blobs, compacted);
+    }
+
+    @Test
+    public void shortOrMostlyLiveManifestIsNotCompacted() {
+        assertFalse(SshManifest.needsCompaction(1000, 0));
+        assertFalse(SshManifest.needsCompaction(2000, 1000));
+        assertTrue(SshManifest.needsCompaction(2001, 1000));
+    }
+}
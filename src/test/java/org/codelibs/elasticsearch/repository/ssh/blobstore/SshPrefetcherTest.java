@@ -0,0 +1,250 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.codelibs.elasticsearch.repository.ssh.blobstore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.common.blobstore.BlobPath;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SshPrefetcherTest {
+
+    private static final BlobPath SHARD = BlobPath.cleanPath().add("indices").add("idx").add("0");
+
+    private final SshBlobContainer container = new SshBlobContainer(null, SHARD);
+
+    private ThreadPool threadPool;
+
+    private FakePrefetcher prefetcher;
+
+    @Before
+    public void setUp() {
+        threadPool = new ThreadPool("ssh-prefetcher-test");
+    }
+
+    @After
+    public void tearDown() {
+        if (prefetcher != null) {
+            prefetcher.close();
+        }
+        ThreadPool.terminate(threadPool, 10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void firstDataReadPrefetchesUnreadParts() throws Exception {
+        prefetcher = new FakePrefetcher(2, 1024, TimeValue.timeValueMinutes(1));
+        prefetcher.parts.put(path("__1"), 4L);
+        prefetcher.parts.put(path("__2"), 4L);
+        prefetcher.parts.put(path("__3"), 4L);
+
+        prefetcher.onRead(container, "snap-s1.dat");
+        assertNull(prefetcher.take(SHARD.add("__1")));
+        prefetcher.onRead(container, "__1");
+
+        assertEquals(Arrays.asList(path("__2"), path("__3")), prefetcher.awaitRequests(2));
+        prefetcher.respond(path("__2"), new byte[] { 2 });
+        prefetcher.respond(path("__3"), new byte[] { 3 });
+
+        assertArrayEquals(new byte[] { 2 }, read(prefetcher.take(SHARD.add("__2"))));
+        assertNull(prefetcher.take(SHARD.add("__2")));
+        assertArrayEquals(new byte[] { 3 }, read(prefetcher.take(SHARD.add("__3"))));
+        assertEquals("s1", prefetcher.snapshotName);
+    }
+
+    @Test
+    public void dataReadWithoutSnapshotReadDoesNotPrefetch() throws Exception {
+        prefetcher = new FakePrefetcher(2, 1024, TimeValue.timeValueMinutes(1));
+        prefetcher.parts.put(path("__2"), 4L);
+
+        prefetcher.onRead(container, "__1");
+        prefetcher.onRead(container, "__2");
+
+        Thread.sleep(50L);
+        assertTrue(prefetcher.requests().isEmpty());
+        assertNull(prefetcher.snapshotName);
+    }
+
+    @Test
+    public void downloadsAreLimitedByCountAndMemory() throws Exception {
+        prefetcher = new FakePrefetcher(1, 10, TimeValue.timeValueMinutes(1));
+        prefetcher.parts.put(path("__2"), 6L);
+        prefetcher.parts.put(path("__3"), 20L);
+        prefetcher.parts.put(path("__4"), 6L);
+
+        prefetcher.onRead(container, "snap-s1.dat");
+        prefetcher.onRead(container, "__1");
+        assertEquals(Arrays.asList(path("__2")), prefetcher.awaitRequests(1));
+
+        // __3 never fits and __4 waits until __2 is taken
+        prefetcher.respond(path("__2"), new byte[6]);
+        Thread.sleep(50L);
+        assertEquals(1, prefetcher.requests().size());
+
+        assertNotNull(prefetcher.take(SHARD.add("__2")));
+        prefetcher.onRead(container, "__2");
+        assertEquals(Arrays.asList(path("__2"), path("__4")), prefetcher.awaitRequests(2));
+    }
+
+    @Test
+    public void takeWaitsForRunningDownload() throws Exception {
+        prefetcher = new FakePrefetcher(1, 1024, TimeValue.timeValueMinutes(1));
+        prefetcher.parts.put(path("__2"), 4L);
+        prefetcher.onRead(container, "snap-s1.dat");
+        prefetcher.onRead(container, "__1");
+        prefetcher.awaitRequests(1);
+
+        final AtomicReference<Object> taken = new AtomicReference<>();
+        final Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    taken.set(read(prefetcher.take(SHARD.add("__2"))));
+                } catch (final IOException e) {
+                    taken.set(e);
+                }
+            }
+        };
+        reader.start();
+        Thread.sleep(50L);
+        assertTrue(reader.isAlive());
+
+        prefetcher.respond(path("__2"), new byte[] { 2 });
+        reader.join(10000L);
+        assertArrayEquals(new byte[] { 2 }, (byte[]) taken.get());
+    }
+
+    @Test
+    public void failedDownloadIsLeftToRestore() throws Exception {
+        prefetcher = new FakePrefetcher(1, 1024, TimeValue.timeValueMinutes(1));
+        prefetcher.parts.put(path("__2"), 4L);
+        prefetcher.onRead(container, "snap-s1.dat");
+        prefetcher.onRead(container, "__1");
+        prefetcher.awaitRequests(1);
+
+        prefetcher.fail(path("__2"));
+        assertNull(prefetcher.take(SHARD.add("__2")));
+    }
+
+    @Test
+    public void unreadBlobsExpire() throws Exception {
+        prefetcher = new FakePrefetcher(1, 1024, TimeValue.timeValueMillis(1));
+        prefetcher.parts.put(path("__2"), 4L);
+        prefetcher.onRead(container, "snap-s1.dat");
+        prefetcher.onRead(container, "__1");
+        prefetcher.awaitRequests(1);
+        prefetcher.respond(path("__2"), new byte[] { 2 });
+
+        Thread.sleep(10L);
+        prefetcher.expire();
+        assertNull(prefetcher.take(SHARD.add("__2")));
+    }
+
+    private static String path(final String blobName) {
+        return SHARD.add(blobName).buildAsString("/");
+    }
+
+    private static byte[] read(final InputStream in) throws IOException {
+        assertNotNull(in);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Streams.copy(in, out);
+        return out.toByteArray();
+    }
+
+    private class FakePrefetcher extends SshPrefetcher {
+        private final Map<String, Long> parts = new LinkedHashMap<>();
+
+        private final Map<String, ActionListener<byte[]>> requests = new LinkedHashMap<>();
+
+        private volatile String snapshotName;
+
+        FakePrefetcher(final int count, final long maxSize, final TimeValue expire) {
+            super(Settings.EMPTY, null, threadPool, count, maxSize, expire);
+        }
+
+        @Override
+        Map<String, Long> readParts(final SshBlobContainer container, final String snapshotName) {
+            this.snapshotName = snapshotName;
+            return parts;
+        }
+
+        @Override
+        void get(final BlobPath blobPath, final ActionListener<byte[]> listener) {
+            synchronized (requests) {
+                requests.put(blobPath.buildAsString("/"), listener);
+                requests.notifyAll();
+            }
+        }
+
+        List<String> requests() {
+            synchronized (requests) {
+                return new ArrayList<>(requests.keySet());
+            }
+        }
+
+        List<String> awaitRequests(final int count) throws InterruptedException {
+            final long deadline = System.currentTimeMillis() + 10000L;
+            synchronized (requests) {
+                long remaining;
+                while (requests.size() < count
+                    && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                    requests.wait(remaining);
+                }
+                return new ArrayList<>(requests.keySet());
+            }
+        }
+
+        void respond(final String path, final byte[] bytes) {
+            listener(path).onResponse(bytes);
+        }
+
+        void fail(final String path) {
+            listener(path).onFailure(new IOException("download failed: " + path));
+        }
+
+        private ActionListener<byte[]> listener(final String path) {
+            synchronized (requests) {
+                return requests.get(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.codelibs.elasticsearch.repository.ssh.blobstore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.common.blobstore.BlobPath;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SshSpoolTest {
+
+    private Path directory;
+
+    private final List<SshSpool> spools = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("ssh-spool");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (final SshSpool spool : spools) {
+            spool.close();
+        }
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs)
+                throws IOException {
+                Files.deleteIfExists(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(final Path file, final IOException e) {
+                // deleted by an upload thread
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(final Path dir, final IOException e)
+                throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Test
+    public void spooledBlobIsUploadedAndRemoved() throws IOException {
+        final RecordingUploader uploader = new RecordingUploader();
+        final SshSpool spool = spool(1024, 1000);
+        spool.start(uploader);
+
+        write(spool, "indices/idx/0/__1", "data");
+        spool.drain();
+
+        assertEquals(Arrays.asList("indices/idx/0/__1"), uploader.paths());
+        assertArrayEquals(bytes("data"), uploader.data("indices/idx/0/__1"));
+        assertFalse(spool.contains(path("indices/idx/0/__1")));
+        assertEquals(new ArrayList<String>(), awaitFiles(0));
+    }
+
+    @Test
+    public void pendingBlobIsReadableFromSpool() throws IOException {
+        final RecordingUploader uploader = new RecordingUploader();
+        uploader.block("indices/idx/0/__1");
+        final SshSpool spool = spool(1024, 1000);
+        spool.start(uploader);
+
+        write(spool, "indices/idx/0/__1", "data");
+
+        assertTrue(spool.contains(path("indices/idx/0/__1")));
+        assertEquals(Long.valueOf(4), spool.list(path("indices/idx/0")).get("__1"));
+        assertTrue(spool.list(path("indices/idx")).isEmpty());
+        try (InputStream in = spool.open(path("indices/idx/0/__1"))) {
+            assertArrayEquals(bytes("data"), read(in));
+        }
+        assertNull(spool.open(path("indices/idx/0/__2")));
+
+        uploader.release();
+        spool.drain();
+    }
+
+    @Test
+    public void metadataIsUploadedAfterEarlierBlobsOfItsContainer() throws Exception {
+        final RecordingUploader uploader = new RecordingUploader();
+        uploader.block("indices/idx/0/__1");
+        final SshSpool spool = spool(1024, 1000);
+        spool.start(uploader);
+
+        write(spool, "indices/idx/0/__1", "data");
+        write(spool, "indices/idx/0/snap-s1.dat", "meta");
+        write(spool, "indices/idx/1/snap-s1.dat", "other");
+        spool.await(path("indices/idx/1/snap-s1.dat"));
+        assertFalse(uploader.paths().contains("indices/idx/0/snap-s1.dat"));
+
+        uploader.release();
+        spool.drain();
+        assertEquals(Arrays.asList("indices/idx/1/snap-s1.dat", "indices/idx/0/__1",
+            "indices/idx/0/snap-s1.dat"), uploader.paths());
+    }
+
+    @Test
+    public void cancelledBlobIsNotUploaded() throws Exception {
+        final RecordingUploader uploader = new RecordingUploader();
+        uploader.block("indices/idx/0/__1");
+        final SshSpool spool = spool(1024, 1000);
+        spool.start(uploader);
+
+        write(spool, "indices/idx/0/__1", "data");
+        write(spool, "indices/idx/0/snap-s1.dat", "meta");
+        assertTrue(spool.cancel(path("indices/idx/0/snap-s1.dat")));
+        assertFalse(spool.contains(path("indices/idx/0/snap-s1.dat")));
+
+        uploader.release();
+        spool.drain();
+        assertEquals(Arrays.asList("indices/idx/0/__1"), uploader.paths());
+        assertEquals(new ArrayList<String>(), awaitFiles(0));
+    }
+
+    @Test
+    public void movedBlobIsUploadedUnderTargetName() throws Exception {
+        final RecordingUploader uploader = new RecordingUploader();
+        uploader.block("indices/idx/0/__1");
+        final SshSpool spool = spool(1024, 1000);
+        spool.start(uploader);
+
+        write(spool, "indices/idx/0/__1", "data");
+        write(spool, "indices/idx/0/pending-index-3", "meta");
+        assertTrue(spool.move(path("indices/idx/0/pending-index-3"), path("indices/idx/0/index-3")));
+        assertTrue(spool.contains(path("indices/idx/0/index-3")));
+        assertFalse(spool.contains(path("indices/idx/0/pending-index-3")));
+
+        uploader.release();
+        spool.drain();
+        assertEquals(Arrays.asList("indices/idx/0/__1", "indices/idx/0/index-3"), uploader.paths());
+        assertArrayEquals(bytes("meta"), uploader.data("indices/idx/0/index-3"));
+    }
+
+    @Test
+    public void journalIsResumedAfterRestart() throws Exception {
+        final RecordingUploader failing = new RecordingUploader();
+        failing.fail = true;
+        final SshSpool first = spool(1024, 1000);
+        first.start(failing);
+        write(first, "indices/idx/0/__1", "data");
+        write(first, "index-0", "meta");
+        assertTrue(failing.attempted.await(10, TimeUnit.SECONDS));
+        first.close();
+
+        Files.write(directory.resolve("notes.path"), bytes("foreign"));
+        Files.write(directory.resolve("99.blob"), bytes("stray"));
+        Files.write(directory.resolve("1.blob.tmp"), bytes("partial"));
+
+        final RecordingUploader uploader = new RecordingUploader();
+        final SshSpool second = spool(1024, 1000);
+        second.start(uploader);
+        second.drain();
+
+        final Set<String> paths = new HashSet<>(uploader.paths());
+        assertEquals(new HashSet<>(Arrays.asList("indices/idx/0/__1", "index-0")), paths);
+        assertArrayEquals(bytes("meta"), uploader.data("index-0"));
+        assertEquals(Arrays.asList("notes.path"), awaitFiles(1));
+
+        write(second, "index-1", "next");
+        second.drain();
+        assertArrayEquals(bytes("next"), uploader.data("index-1"));
+    }
+
+    @Test
+    public void writeTimesOutWhileSpoolIsFull() throws IOException {
+        final RecordingUploader uploader = new RecordingUploader();
+        uploader.block("indices/idx/0/__1");
+        final SshSpool spool = spool(6, 100);
+        spool.start(uploader);
+
+        write(spool, "indices/idx/0/__1", "data");
+        try {
+            write(spool, "indices/idx/0/__2", "more");
+            fail();
+        } catch (final IOException e) {
+            // expected
+        }
+        assertFalse(spool.contains(path("indices/idx/0/__2")));
+
+        uploader.release();
+        spool.drain();
+        write(spool, "indices/idx/0/__2", "more");
+        spool.drain();
+        assertEquals(Arrays.asList("indices/idx/0/__1", "indices/idx/0/__2"), uploader.paths());
+    }
+
+    private SshSpool spool(final long maxSize, final long timeoutMillis) throws IOException {
+        final SshSpool spool = new SshSpool(Settings.EMPTY, directory, maxSize, 2,
+            TimeValue.timeValueMillis(timeoutMillis));
+        spools.add(spool);
+        return spool;
+    }
+
+    /**
+     * Upload threads delete the journal files after the blob leaves the spool.
+     */
+    private List<String> awaitFiles(final int count) throws IOException {
+        final long deadline = System.currentTimeMillis() + 10000L;
+        List<String> names = files();
+        while (names.size() > count && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(10L);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            names = files();
+        }
+        return names;
+    }
+
+    private List<String> files() throws IOException {
+        final List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (final Path file : stream) {
+                names.add(file.getFileName().toString());
+            }
+        }
+        return names;
+    }
+
+    private static void write(final SshSpool spool, final String path, final String data)
+        throws IOException {
+        final byte[] bytes = bytes(data);
+        spool.write(path(path), new ByteArrayInputStream(bytes), bytes.length);
+    }
+
+    private static BlobPath path(final String path) {
+        BlobPath blobPath = BlobPath.cleanPath();
+        for (final String element : path.split("/")) {
+            blobPath = blobPath.add(element);
+        }
+        return blobPath;
+    }
+
+    private static byte[] bytes(final String data) {
+        return data.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] read(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Streams.copy(in, out);
+        return out.toByteArray();
+    }
+
+    private static class RecordingUploader implements SshSpool.Uploader {
+        private final Map<String, byte[]> uploaded = new LinkedHashMap<>();
+
+        private final CountDownLatch gate = new CountDownLatch(1);
+
+        private final CountDownLatch attempted = new CountDownLatch(1);
+
+        private final Set<String> blocked = new HashSet<>();
+
+        private volatile boolean fail;
+
+        void block(final String path) {
+            blocked.add(path);
+        }
+
+        void release() {
+            gate.countDown();
+        }
+
+        synchronized List<String> paths() {
+            return new ArrayList<>(uploaded.keySet());
+        }
+
+        synchronized byte[] data(final String path) {
+            return uploaded.get(path);
+        }
+
+        @Override
+        public void upload(final BlobPath blobPath, final InputStream inputStream, final long blobSize)
+            throws IOException {
+            final String path = blobPath.buildAsString("/");
+            attempted.countDown();
+            if (fail) {
+                throw new IOException("upload failed: " + path);
+            }
+            if (blocked.contains(path)) {
+                try {
+                    gate.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+            }
+            final byte[] data = read(inputStream);
+            assertEquals(blobSize, data.length);
+            assertNotNull(path);
+            synchronized (this) {
+                uploaded.put(path, data);
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.codelibs.elasticsearch.repository.ssh.blobstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class TarWriterTest {
+
+    private static String field(final byte[] header, final int offset, final int length) {
+        int end = offset;
+        while (end < offset + length && header[end] != 0) {
+            end++;
+        }
+        return new String(header, offset, end - offset, StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] write(final String path, final byte[] data) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new TarWriter(out).putEntry(path, data, 1500000000L);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void headerChecksumCoversHeaderWithBlankChecksumField() throws IOException {
+        final byte[] tar = write("indices/idx/0/__1", new byte[] { 1, 2, 3 });
+        assertEquals(1024, tar.length);
+        final byte[] header = Arrays.copyOf(tar, 512);
+
+        final long stored = Long.parseLong(field(header, 148, 7), 8);
+        assertEquals(' ', header[155]);
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long sum = 0;
+        for (final byte b : header) {
+            sum += b & 0xff;
+        }
+        assertEquals(sum, stored);
+
+        assertEquals("indices/idx/0/__1", field(header, 0, 100));
+        assertEquals(3, Long.parseLong(field(header, 124, 12), 8));
+        assertEquals(1500000000L, Long.parseLong(field(header, 136, 12), 8));
+        assertEquals("ustar", field(header, 257, 6));
+        assertEquals('0', header[156]);
+        assertEquals(1, tar[512]);
+        assertEquals(0, tar[515]);
+    }
+
+    @Test
+    public void longPathIsSplitIntoPrefixAndName() throws IOException {
+        final String dir = "indices/" + repeat('d', 120);
+        final String name = repeat('n', 90);
+        assertTrue(TarWriter.fits(dir + "/" + name));
+        final byte[] header = Arrays.copyOf(write(dir + "/" + name, new byte[0]), 512);
+        assertEquals(name, field(header, 0, 100));
+        assertEquals(dir, field(header, 345, 155));
+    }
+
+    @Test
+    public void pathThatDoesNotFitIsRejected() throws IOException {
+        final String nameTooLong = "indices/idx/" + repeat('n', 101);
+        final String prefixTooLong = repeat('d', 156) + "/__1";
+        assertFalse(TarWriter.fits(nameTooLong));
+        assertFalse(TarWriter.fits(prefixTooLong));
+        assertTrue(TarWriter.fits(repeat('d', 155) + "/__1"));
+        try {
+            write(nameTooLong, new byte[0]);
+            fail();
+        } catch (final IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void finishWritesTwoEmptyBlocks() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final TarWriter tar = new TarWriter(out);
+        tar.putEntry("a", new byte[513], 0L);
+        tar.finish();
+        final byte[] bytes = out.toByteArray();
+        assertEquals(512 + 1024 + 1024, bytes.length);
+        for (int i = bytes.length - 1024; i < bytes.length; i++) {
+            assertEquals(0, bytes[i]);
+        }
+    }
+
+    private static String repeat(final char c, final int count) {
+        final char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.codelibs.elasticsearch.repository.ssh.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.codelibs.elasticsearch.repository.ssh.utils.SshCircuitBreaker.State;
+import org.junit.Test;
+
+public class SshCircuitBreakerTest {
+
+    private static final long HOUR = 3600000L;
+
+    private static SshCircuitBreaker open(final long probeInterval) {
+        final SshCircuitBreaker breaker = new SshCircuitBreaker(2, probeInterval);
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.onFailure());
+        assertTrue(breaker.allowRequest());
+        assertTrue(breaker.onFailure());
+        return breaker;
+    }
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        final SshCircuitBreaker breaker = open(HOUR);
+        assertEquals(State.OPEN, breaker.getState());
+        assertTrue(breaker.isRejecting());
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void successResetsFailureCount() {
+        final SshCircuitBreaker breaker = new SshCircuitBreaker(2, HOUR);
+        breaker.onFailure();
+        breaker.onSuccess();
+        assertFalse(breaker.onFailure());
+        assertEquals(State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void probeSuccessLetsOneTrialThrough() {
+        final SshCircuitBreaker breaker = open(HOUR);
+        breaker.onProbeSuccess();
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.isRejecting());
+        assertTrue(breaker.allowRequest());
+        assertTrue(breaker.isRejecting());
+        assertFalse(breaker.allowRequest());
+        breaker.onSuccess();
+        assertEquals(State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void failedTrialOpensAgain() {
+        final SshCircuitBreaker breaker = open(HOUR);
+        breaker.onProbeSuccess();
+        assertTrue(breaker.allowRequest());
+        assertTrue(breaker.onFailure());
+        assertEquals(State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void trialIsAllowedAfterProbeInterval() {
+        final SshCircuitBreaker breaker = open(0L);
+        assertFalse(breaker.isRejecting());
+        assertTrue(breaker.allowRequest());
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.codelibs.elasticsearch.repository.ssh.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SshConcurrencyLimiterTest {
+
+    @Test
+    public void overloadHalvesLimitDownToOne() {
+        final SshConcurrencyLimiter limiter = new SshConcurrencyLimiter(8);
+        assertEquals(8, limiter.getLimit());
+        limiter.onOverload();
+        assertEquals(4, limiter.getLimit());
+        limiter.onOverload();
+        limiter.onOverload();
+        assertEquals(1, limiter.getLimit());
+        limiter.onOverload();
+        assertEquals(1, limiter.getLimit());
+    }
+
+    @Test
+    public void limitGrowsByOneAfterAWindowOfSuccesses() {
+        final SshConcurrencyLimiter limiter = new SshConcurrencyLimiter(3);
+        limiter.onOverload();
+        assertEquals(1, limiter.getLimit());
+        limiter.onSuccess();
+        assertEquals(2, limiter.getLimit());
+        limiter.onSuccess();
+        assertEquals(2, limiter.getLimit());
+        limiter.onSuccess();
+        assertEquals(3, limiter.getLimit());
+        for (int i = 0; i < 10; i++) {
+            limiter.onSuccess();
+        }
+        assertEquals(3, limiter.getLimit());
+    }
+
+    @Test
+    public void overloadRestartsTheWindow() {
+        final SshConcurrencyLimiter limiter = new SshConcurrencyLimiter(8);
+        limiter.onOverload();
+        limiter.onSuccess();
+        limiter.onSuccess();
+        limiter.onSuccess();
+        limiter.onOverload();
+        assertEquals(2, limiter.getLimit());
+        limiter.onSuccess();
+        assertEquals(2, limiter.getLimit());
+        limiter.onSuccess();
+        assertEquals(3, limiter.getLimit());
+    }
+
+    @Test
+    public void acquireWaitsForAPermit() throws InterruptedException {
+        final SshConcurrencyLimiter limiter = new SshConcurrencyLimiter(2);
+        assertTrue(limiter.acquire(0L));
+        assertTrue(limiter.acquire(0L));
+        assertFalse(limiter.acquire(10L));
+        limiter.release();
+        assertTrue(limiter.acquire(0L));
+    }
+
+    @Test
+    public void shrunkLimitAppliesToNewPermits() throws InterruptedException {
+        final SshConcurrencyLimiter limiter = new SshConcurrencyLimiter(4);
+        assertTrue(limiter.acquire(0L));
+        assertTrue(limiter.acquire(0L));
+        assertTrue(limiter.acquire(0L));
+        limiter.onOverload();
+        assertFalse(limiter.acquire(0L));
+        limiter.release();
+        assertFalse(limiter.acquire(0L));
+        limiter.release();
+        assertTrue(limiter.acquire(0L));
+    }
+}